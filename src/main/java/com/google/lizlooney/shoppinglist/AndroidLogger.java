@@ -0,0 +1,41 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import android.util.Log;
+
+/**
+ * Logger that writes to the Android log with the shopping list's tag.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class AndroidLogger implements Logger {
+  @Override
+  public void debug(String message) {
+    Log.d(ShoppingList.LOG_TAG, message);
+  }
+
+  @Override
+  public void error(String message) {
+    Log.e(ShoppingList.LOG_TAG, message);
+  }
+
+  @Override
+  public void error(String message, Throwable e) {
+    Log.e(ShoppingList.LOG_TAG, message, e);
+  }
+}
@@ -16,8 +16,6 @@
 
 package com.google.lizlooney.shoppinglist;
 
-import android.content.Context;
-
 /**
  * Enum for the different display modes.
  *
@@ -35,31 +33,4 @@ public enum DisplayMode {
    * aisle column is displayed.
    */
   SHOPPING;
-
-  public static DisplayMode fromString(Context context, String s) {
-    if (s.equals(context.getString(R.string.DisplayModePlanning))) {
-      return DisplayMode.PLANNING;
-    }
-    if (s.equals(context.getString(R.string.DisplayModeShopping))) {
-      return DisplayMode.SHOPPING;
-    }
-    throw new IllegalArgumentException();
-  }
-
-  public static String toString(Context context, DisplayMode displayMode) {
-    switch (displayMode) {
-      default:
-      case PLANNING:
-        return context.getString(R.string.DisplayModePlanning);
-      case SHOPPING:
-        return context.getString(R.string.DisplayModeShopping);
-    }
-  }
-
-  public static String[] getStrings(Context context) {
-    return new String[] {
-      DisplayMode.toString(context, DisplayMode.PLANNING),
-      DisplayMode.toString(context, DisplayMode.SHOPPING)
-    };
-  }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+/**
+ * Enum for the different durability levels of storage.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+public enum Durability {
+  /**
+   * Every change is committed to disk before the call that made it returns.
+   */
+  SYNCHRONOUS,
+
+  /**
+   * Changes are collected and committed together on a background thread, either when the group
+   * commit interval has passed or when enough changes are pending, whichever comes first.
+   */
+  GROUP_COMMIT,
+
+  /**
+   * Changes are handed to a background thread to be committed as soon as possible. The caller
+   * never waits.
+   */
+  ASYNC
+}
@@ -389,4 +389,41 @@ public final class EditItem extends Activity {
       }
     }
   }
+
+  /**
+   * Puts the fields of the given item that can be edited in the given intent.
+   */
+  static void putItemExtras(Intent intent, Item item) {
+    intent.putExtra(ITEM_DESCRIPTION, item.getDescription());
+    intent.putExtra(ITEM_CATEGORY, item.getCategory());
+    intent.putExtra(ITEM_LAST_PURCHASED, item.getLastPurchased());
+    intent.putExtra(ITEM_AUTO_DELETE, item.getAutoDelete());
+
+    List<String> stores = new ArrayList<>();
+    List<String> aisles = new ArrayList<>();
+    for (String store : item.getStores()) {
+      stores.add(store);
+      aisles.add(item.getAisle(store));
+    }
+    intent.putExtra(ITEM_STORES, stores.toArray(new String[0]));
+    intent.putExtra(ITEM_AISLES, aisles.toArray(new String[0]));
+  }
+
+  /**
+   * Sets the fields of the given item from the edited fields in the given intent.
+   */
+  static void getItemExtras(Intent intent, Item item) {
+    item.setDescription(intent.getStringExtra(ITEM_DESCRIPTION));
+    item.setCategory(intent.getStringExtra(ITEM_CATEGORY));
+    item.setAutoDelete(intent.getBooleanExtra(ITEM_AUTO_DELETE, false));
+
+    String[] stores = intent.getStringArrayExtra(ITEM_STORES);
+    String[] aisles = intent.getStringArrayExtra(ITEM_AISLES);
+    item.clearStoreAisles();
+    if (stores.length == aisles.length) {
+      for (int i = 0; i < stores.length; i++) {
+        item.addStoreAisle(stores[i], aisles[i]);
+      }
+    }
+  }
 }
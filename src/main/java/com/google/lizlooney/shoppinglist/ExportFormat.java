@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Enum for the formats of export files. On import, the format is recognized from the first bytes
+ * of the file.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+enum ExportFormat {
+  /**
+   * One item per line as a JSON object.
+   */
+  JSON,
+
+  /**
+   * JSON, compressed with gzip.
+   */
+  GZIP_JSON,
+
+  /**
+   * A magic number and a format version, followed by blocks of items encoded by {@link ItemCodec}.
+   * Each block is its length, as a 4 byte int, followed by a varint count and, for that many items,
+   * a varint id and the item. The blocks end with a length of 0.
+   */
+  BINARY;
+
+  static final int BINARY_MAGIC = 0x534c5842; // "SLXB"
+  static final byte BINARY_VERSION = 1;
+
+  private static final int GZIP_MAGIC = 0x1f8b;
+
+  /**
+   * Returns the format of the file in the given stream, without consuming any of it.
+   *
+   * @param in a stream that supports mark and reset
+   */
+  static ExportFormat detect(InputStream in) throws IOException {
+    byte[] magic = new byte[4];
+    in.mark(magic.length);
+    int length = 0;
+    try {
+      while (length < magic.length) {
+        int count = in.read(magic, length, magic.length - length);
+        if (count == -1) {
+          break;
+        }
+        length += count;
+      }
+    } finally {
+      in.reset();
+    }
+    if (length == magic.length && ByteBuffer.wrap(magic).getInt() == BINARY_MAGIC) {
+      return BINARY;
+    }
+    if (length >= 2 && (ByteBuffer.wrap(magic).getShort() & 0xffff) == GZIP_MAGIC) {
+      return GZIP_JSON;
+    }
+    return JSON;
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Storage backend that keeps each store in a file of its own in a directory, using only the JVM.
+ * It lets the storage code run, and be measured, off the device.
+ *
+ * <p>A store is held in memory and written whole, to a temporary file that is then renamed over
+ * the store's file, when an editor is committed. A store file is a count followed by that many
+ * entries, each being a key, a type byte and a value.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class FileStorageBackend implements StorageBackend {
+  private static final String STORE_FILE_SUFFIX = ".store";
+  private static final String TMP_FILE_SUFFIX = ".tmp";
+
+  private static final byte TYPE_INT = 1;
+  private static final byte TYPE_LONG = 2;
+  private static final byte TYPE_STRING = 3;
+
+  private final File dir;
+  private final Map<String, FileStore> stores = new HashMap<>();
+
+  /**
+   * Creates a backend that keeps its stores and files in the given directory.
+   */
+  FileStorageBackend(File dir) {
+    this.dir = dir;
+    dir.mkdirs();
+  }
+
+  @Override
+  public synchronized Store getStore(String name) {
+    FileStore store = stores.get(name);
+    if (store == null) {
+      store = new FileStore(new File(dir, name + STORE_FILE_SUFFIX));
+      stores.put(name, store);
+    }
+    return store;
+  }
+
+  @Override
+  public File getFilesDir() {
+    return dir;
+  }
+
+  private static final class FileStore implements Store {
+    private final File file;
+    /**
+     * The committed values. Replaced, never changed, by a commit. Guarded by this.
+     */
+    private Map<String, Object> values;
+
+    FileStore(File file) {
+      this.file = file;
+      try {
+        values = read(file);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read " + file, e);
+      }
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+      Object value = get(key);
+      return (value instanceof Integer) ? (Integer) value : defaultValue;
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+      Object value = get(key);
+      return (value instanceof Long) ? (Long) value : defaultValue;
+    }
+
+    @Override
+    public String getString(String key, String defaultValue) {
+      Object value = get(key);
+      return (value instanceof String) ? (String) value : defaultValue;
+    }
+
+    private synchronized Object get(String key) {
+      return values.get(key);
+    }
+
+    @Override
+    public Editor edit() {
+      return new FileEditor(this);
+    }
+
+    /**
+     * Applies the given changes, where a null value is a removal, and writes the store.
+     */
+    synchronized boolean commit(boolean clear, Map<String, Object> changes) {
+      Map<String, Object> newValues = clear ? new HashMap<String, Object>() : new HashMap<>(values);
+      for (Map.Entry<String, Object> entry : changes.entrySet()) {
+        if (entry.getValue() != null) {
+          newValues.put(entry.getKey(), entry.getValue());
+        } else {
+          newValues.remove(entry.getKey());
+        }
+      }
+      try {
+        write(file, newValues);
+      } catch (IOException e) {
+        return false;
+      }
+      values = newValues;
+      return true;
+    }
+  }
+
+  private static final class FileEditor implements Editor {
+    private final FileStore store;
+    private final Map<String, Object> changes = new LinkedHashMap<>();
+    private boolean clear;
+
+    FileEditor(FileStore store) {
+      this.store = store;
+    }
+
+    @Override
+    public synchronized Editor putInt(String key, int value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public synchronized Editor putLong(String key, long value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public synchronized Editor putString(String key, String value) {
+      // Like SharedPreferences, putting null removes the key.
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public synchronized Editor remove(String key) {
+      changes.put(key, null);
+      return this;
+    }
+
+    @Override
+    public synchronized Editor clear() {
+      clear = true;
+      return this;
+    }
+
+    @Override
+    public synchronized boolean commit() {
+      boolean committed = store.commit(clear, changes);
+      changes.clear();
+      clear = false;
+      return committed;
+    }
+  }
+
+  private static Map<String, Object> read(File file) throws IOException {
+    Map<String, Object> values = new HashMap<>();
+    if (!file.exists()) {
+      return values;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String key = readString(in);
+        byte type = in.readByte();
+        switch (type) {
+          case TYPE_INT:
+            values.put(key, in.readInt());
+            break;
+          case TYPE_LONG:
+            values.put(key, in.readLong());
+            break;
+          case TYPE_STRING:
+            values.put(key, readString(in));
+            break;
+          default:
+            throw new IOException("Bad type " + type + " in " + file);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return values;
+  }
+
+  private static void write(File file, Map<String, Object> values) throws IOException {
+    File tmpFile = new File(file.getPath() + TMP_FILE_SUFFIX);
+    FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+      out.writeInt(values.size());
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        writeString(out, entry.getKey());
+        Object value = entry.getValue();
+        if (value instanceof Integer) {
+          out.writeByte(TYPE_INT);
+          out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+          out.writeByte(TYPE_LONG);
+          out.writeLong((Long) value);
+        } else {
+          out.writeByte(TYPE_STRING);
+          writeString(out, (String) value);
+        }
+      }
+      out.flush();
+      fileOutputStream.getFD().sync();
+    } finally {
+      fileOutputStream.close();
+    }
+    if (!tmpFile.renameTo(file)) {
+      tmpFile.delete();
+      throw new IOException("Could not rename " + tmpFile + " to " + file);
+    }
+  }
+
+  // Unlike writeUTF, these are not limited to 64K bytes, which a large item could exceed.
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
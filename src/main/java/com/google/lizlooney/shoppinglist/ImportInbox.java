@@ -0,0 +1,509 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import android.os.FileObserver;
+import android.util.Log;
+import com.google.gson.JsonParseException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class importing the export files that are put in an inbox directory, as they appear and as they
+ * grow, on a background thread.
+ *
+ * <p>A JSON file is imported a batch of whole lines at a time, and the number of bytes of the file
+ * that have been imported is saved after each batch. A file that is still being written is
+ * imported as lines are added to it, and a file is never read from the start again once it has
+ * been imported. A line that isn't an item is skipped, and the other lines of its batch are still
+ * imported. A last line without a newline is imported once the file is finished: when it is
+ * closed or renamed into the inbox, or when it hasn't changed for a while. Compressed and binary
+ * files are imported whole, once they can be read to the end. Files whose names start with "." or
+ * end with ".tmp" are left alone, so a file can be written under another name and then renamed
+ * into the inbox. An export of changes is not imported, since merging can't apply its deletes. It
+ * is moved to the "failed" directory in the inbox.
+ *
+ * <p>A file that can't be read is tried again later, waiting longer each time, and after a few
+ * tries it is moved to the "failed" directory in the inbox.
+ *
+ * <p>The items of a batch are saved before the offset that skips them. If the app dies in between,
+ * the batch is imported again, which does no harm because imported items are merged by
+ * description.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ImportInbox {
+  private static final boolean DEBUG = false;
+
+  /**
+   * The most bytes of a JSON file that are imported at a time, unless a line is longer than that.
+   */
+  private static final int BATCH_SIZE = 1024 * 1024;
+  /**
+   * The time to wait after a change in the directory before looking at it, so that a burst of
+   * writes to a file is imported together.
+   */
+  private static final long SCAN_DELAY_MS = 500;
+  /**
+   * The time after which a file that hasn't changed is taken to be finished.
+   */
+  private static final long STABLE_MS = 5000;
+  /**
+   * The time to wait before trying a file that couldn't be read again. It doubles with each try.
+   */
+  private static final long RETRY_DELAY_MS = 10 * 1000;
+  /**
+   * The number of times a file is tried before it is moved aside.
+   */
+  private static final int MAX_TRIES = 4;
+  private static final String FAILED_DIR_NAME = "failed";
+  /**
+   * The start of an export of changes, whose first line describes the changes instead of being an
+   * item.
+   */
+  private static final byte[] CHANGES_HEADER_START =
+      "{\"fromSeq\":".getBytes(StandardCharsets.UTF_8);
+  private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MODIFY
+      | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE;
+
+  /**
+   * Interface for receiving the imported items.
+   */
+  interface Listener {
+    /**
+     * Called on the inbox thread with each batch of imported items. The items must have been
+     * given to {@link Storage} by the time it returns. Items may be imported from a file on
+     * another thread at the same time, so the listener must serialize its changes with those.
+     */
+    void onItemsImported(List<Item> items);
+  }
+
+  private final File dir;
+  private final Storage storage;
+  private final Listener listener;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final AtomicBoolean scanScheduled = new AtomicBoolean();
+  private volatile boolean stopped;
+  /**
+   * The number of bytes of each file that have been imported, by file name. Loaded by the first
+   * scan, and only used on the inbox thread.
+   */
+  private Map<String, Long> offsets;
+  /**
+   * The names of the files that were closed after writing, or renamed into the inbox, and haven't
+   * been changed since.
+   */
+  private final Set<String> closedNames =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  /**
+   * The files that couldn't be read, by file name. Only used on the inbox thread.
+   */
+  private final Map<String, Failure> failures = new HashMap<>();
+  /**
+   * The scan that looks at files again after waiting for them, if any. Only used on the inbox
+   * thread.
+   */
+  private ScheduledFuture<?> retryScan;
+  private final FileObserver observer;
+  private final Runnable scanRunnable = new Runnable() {
+    @Override
+    public void run() {
+      scanScheduled.set(false);
+      if (!stopped) {
+        scan();
+      }
+    }
+  };
+
+  /**
+   * Class holding how many times a file couldn't be read, and when it can be tried again.
+   */
+  private static final class Failure {
+    int count;
+    long retryTimeMs;
+  }
+
+  ImportInbox(File dir, Storage storage, Listener listener) {
+    this.dir = dir;
+    this.storage = storage;
+    this.listener = listener;
+    observer = new FileObserver(dir.getPath(), EVENTS) {
+      @Override
+      public void onEvent(int event, String path) {
+        if (path != null) {
+          if ((event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO)) != 0) {
+            closedNames.add(path);
+          } else {
+            closedNames.remove(path);
+          }
+        }
+        scheduleScan(SCAN_DELAY_MS);
+      }
+    };
+  }
+
+  /**
+   * Starts watching the inbox, after importing whatever was added while it wasn't watched.
+   */
+  void start() {
+    dir.mkdirs();
+    observer.startWatching();
+    scheduleScan(0);
+  }
+
+  void stop() {
+    stopped = true;
+    observer.stopWatching();
+    executor.shutdown();
+  }
+
+  private void scheduleScan(long delayMs) {
+    if (scanScheduled.compareAndSet(false, true)) {
+      schedule(delayMs);
+    }
+  }
+
+  private ScheduledFuture<?> schedule(long delayMs) {
+    try {
+      return executor.schedule(scanRunnable, delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // The inbox has been stopped.
+      return null;
+    }
+  }
+
+  /**
+   * Imports what is new in each file. Runs on the inbox thread.
+   */
+  private void scan() {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    if (offsets == null) {
+      offsets = storage.loadInboxOffsets();
+    }
+    Set<String> names = new HashSet<>();
+    // The time until a file that is waited for should be looked at again.
+    long retryDelayMs = Long.MAX_VALUE;
+    for (File file : files) {
+      String name = file.getName();
+      if (!file.isFile() || name.startsWith(".") || name.endsWith(".tmp")) {
+        continue;
+      }
+      names.add(name);
+      Failure failure = failures.get(name);
+      long now = System.currentTimeMillis();
+      if (failure != null && now < failure.retryTimeMs) {
+        if (failure.retryTimeMs != Long.MAX_VALUE) {
+          retryDelayMs = Math.min(retryDelayMs, failure.retryTimeMs - now);
+        }
+        continue;
+      }
+      try {
+        importFile(file);
+        failures.remove(name);
+      } catch (EOFException e) {
+        if (isFinished(file)) {
+          // The file ends too soon, and nothing more is being written to it.
+          fileFailed(file, e);
+        } else {
+          // The file is still being written.
+          if (DEBUG) {
+            Log.d(ShoppingList.LOG_TAG, "ImportInbox.scan waiting for the rest of " + name);
+          }
+          retryDelayMs = Math.min(retryDelayMs,
+              Math.max(STABLE_MS - (now - file.lastModified()), SCAN_DELAY_MS));
+        }
+      } catch (IOException e) {
+        fileFailed(file, e);
+      }
+      failure = failures.get(name);
+      if (failure != null && failure.retryTimeMs != Long.MAX_VALUE) {
+        retryDelayMs = Math.min(retryDelayMs, Math.max(failure.retryTimeMs - now, 0));
+      }
+    }
+    // Forget the files that are gone, so that a new file with the same name starts at the start.
+    failures.keySet().retainAll(names);
+    if (offsets.keySet().retainAll(names)) {
+      storage.saveInboxOffsets(offsets);
+    }
+    if (retryScan != null) {
+      retryScan.cancel(false);
+      retryScan = null;
+    }
+    if (retryDelayMs != Long.MAX_VALUE) {
+      // This doesn't go through scheduleScan, so that a change in the directory is still looked
+      // at soon.
+      retryScan = schedule(retryDelayMs);
+    }
+  }
+
+  /**
+   * Returns true if nothing more is expected to be written to the given file, because it was
+   * closed or renamed into the inbox, or because it hasn't changed for a while.
+   */
+  private boolean isFinished(File file) {
+    return closedNames.contains(file.getName())
+        || System.currentTimeMillis() - file.lastModified() >= STABLE_MS;
+  }
+
+  /**
+   * Records that the given file couldn't be read. It is tried again later, unless it has been
+   * tried too many times, in which case it is moved aside.
+   */
+  private void fileFailed(File file, IOException e) {
+    String name = file.getName();
+    Failure failure = failures.get(name);
+    if (failure == null) {
+      failure = new Failure();
+      failures.put(name, failure);
+    }
+    failure.count++;
+    if (failure.count < MAX_TRIES) {
+      Log.e(ShoppingList.LOG_TAG, "ImportInbox.scan caught", e);
+      failure.retryTimeMs = System.currentTimeMillis() + (RETRY_DELAY_MS << (failure.count - 1));
+      return;
+    }
+    Log.e(ShoppingList.LOG_TAG, "ImportInbox.scan giving up on " + name, e);
+    moveToFailedDir(file);
+  }
+
+  /**
+   * Moves the given file to the failed directory, or if it can't be moved, leaves it alone until
+   * the app is started again.
+   */
+  private void moveToFailedDir(File file) {
+    String name = file.getName();
+    File failedDir = new File(dir, FAILED_DIR_NAME);
+    failedDir.mkdirs();
+    if (file.renameTo(new File(failedDir, name))) {
+      failures.remove(name);
+    } else {
+      Log.e(ShoppingList.LOG_TAG, "ImportInbox.scan could not move " + name);
+      Failure failure = failures.get(name);
+      if (failure == null) {
+        failure = new Failure();
+        failures.put(name, failure);
+      }
+      failure.retryTimeMs = Long.MAX_VALUE;
+    }
+  }
+
+  private void importFile(File file) throws IOException {
+    String name = file.getName();
+    Long savedOffset = offsets.get(name);
+    long offset = (savedOffset != null) ? savedOffset : 0;
+    long length = file.length();
+    if (length < offset) {
+      // The file was replaced by a shorter one.
+      offset = 0;
+    }
+    if (offset == length) {
+      return;
+    }
+    if (offset == 0) {
+      if (length < 4) {
+        // Too little has been written to tell the format.
+        return;
+      }
+      ExportFormat format;
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+        format = ExportFormat.detect(in);
+        if (format == ExportFormat.JSON && isChangesFile(in)) {
+          // An export of changes holds deletes as well as items, and merging can't apply them.
+          Log.e(ShoppingList.LOG_TAG, "ImportInbox.importFile can't import the changes in " + name);
+          moveToFailedDir(file);
+          return;
+        }
+        if (format != ExportFormat.JSON) {
+          importWholeFile(in, file.getName(), length);
+          return;
+        }
+      } finally {
+        in.close();
+      }
+    }
+    importJsonLines(file, offset, isFinished(file));
+  }
+
+  /**
+   * Returns true if the file in the given stream is an export of changes, without consuming any of
+   * it.
+   *
+   * @param in a stream that supports mark and reset
+   */
+  private static boolean isChangesFile(InputStream in) throws IOException {
+    byte[] start = new byte[CHANGES_HEADER_START.length];
+    in.mark(start.length);
+    int length = 0;
+    try {
+      while (length < start.length) {
+        int count = in.read(start, length, start.length - length);
+        if (count == -1) {
+          break;
+        }
+        length += count;
+      }
+    } finally {
+      in.reset();
+    }
+    return Arrays.equals(start, CHANGES_HEADER_START);
+  }
+
+  private void importWholeFile(InputStream in, String name, long length) throws IOException {
+    List<Item> items;
+    try {
+      items = ItemImporter.readFile(in, null);
+    } catch (JsonParseException e) {
+      Log.e(ShoppingList.LOG_TAG, "ImportInbox.importWholeFile caught", e);
+      // Don't try this file again.
+      saveOffset(name, length);
+      return;
+    }
+    importItems(items);
+    saveOffset(name, length);
+  }
+
+  /**
+   * Imports the lines after the given offset. The last line is imported without a newline only if
+   * the file is finished.
+   *
+   * @throws EOFException if the file isn't finished and its last line has no newline yet
+   */
+  private void importJsonLines(File file, long offset, boolean finished) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      long length = in.length();
+      int batchSize = BATCH_SIZE;
+      while (offset < length) {
+        byte[] batch = new byte[(int) Math.min(batchSize, length - offset)];
+        in.seek(offset);
+        in.readFully(batch);
+        // A newline byte is never part of a multi-byte UTF-8 character.
+        int end = lastIndexOf(batch, (byte) '\n') + 1;
+        if (end == 0) {
+          if (batch.length < length - offset) {
+            // The line is longer than a batch.
+            batchSize *= 2;
+            continue;
+          }
+          if (!finished) {
+            throw new EOFException("The last line of " + file.getName() + " has no newline yet");
+          }
+          end = batch.length;
+        }
+        List<Item> items;
+        try {
+          items = readItems(batch, 0, end, Runtime.getRuntime().availableProcessors());
+        } catch (IOException | JsonParseException e) {
+          // Read the lines one at a time, so that only the bad ones are skipped.
+          items = readLines(file.getName(), batch, end);
+        }
+        if (!items.isEmpty()) {
+          importItems(items);
+        }
+        offset += end;
+        saveOffset(file.getName(), offset);
+        batchSize = BATCH_SIZE;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads the items in the given bytes of a batch. The bytes are in memory, so an IOException means
+   * that they aren't JSON.
+   */
+  private static List<Item> readItems(byte[] batch, int start, int end, int threadCount)
+      throws IOException {
+    return new ItemImporter(new InputStreamReader(
+        new ByteArrayInputStream(batch, start, end - start), StandardCharsets.UTF_8), threadCount)
+        .readItems(null);
+  }
+
+  /**
+   * Reads the items in the first end bytes of the given batch one line at a time, skipping the
+   * lines that are not items rather than trying them again and again.
+   */
+  private static List<Item> readLines(String name, byte[] batch, int end) {
+    List<Item> items = new ArrayList<>();
+    int lineStart = 0;
+    while (lineStart < end) {
+      int lineEnd = lineStart;
+      while (lineEnd < end && batch[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      try {
+        items.addAll(readItems(batch, lineStart, lineEnd, 1));
+      } catch (IOException | JsonParseException e) {
+        Log.e(ShoppingList.LOG_TAG, "ImportInbox.readLines skipping a bad line of " + name, e);
+      }
+      lineStart = lineEnd + 1;
+    }
+    return items;
+  }
+
+  private void importItems(List<Item> items) {
+    if (DEBUG) {
+      Log.d(ShoppingList.LOG_TAG, "ImportInbox.importItems importing " + items.size() + " items");
+    }
+    listener.onItemsImported(items);
+    // The items must be written before the offset that skips them.
+    storage.flush();
+  }
+
+  private void saveOffset(String name, long offset) {
+    offsets.put(name, offset);
+    storage.saveInboxOffsets(offsets);
+  }
+
+  private static int lastIndexOf(byte[] bytes, byte b) {
+    for (int i = bytes.length - 1; i >= 0; i--) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
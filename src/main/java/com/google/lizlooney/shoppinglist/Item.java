@@ -16,11 +16,18 @@
 
 package com.google.lizlooney.shoppinglist;
 
-import android.content.Intent;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.TreeMap;
 
 /**
@@ -29,24 +36,111 @@ import java.util.TreeMap;
  * @author lizlooney@gmail.com (Liz Looney)
  */
 public final class Item {
+  // Bits for the fields that have changed since the item was last saved.
+  static final int FIELD_DESCRIPTION = 1;
+  static final int FIELD_CATEGORY = 1 << 1;
+  static final int FIELD_STATE = 1 << 2;
+  static final int FIELD_LAST_PURCHASED = 1 << 3;
+  static final int FIELD_AUTO_DELETE = 1 << 4;
+  static final int FIELD_STORE_AISLES = 1 << 5;
+  static final int ALL_FIELDS = (1 << 6) - 1;
+
   private transient int id;
+  /**
+   * The fields that have changed since the item was last saved. A new item, or an item whose id
+   * has changed, has all fields dirty.
+   */
+  private transient int dirtyFields = ALL_FIELDS;
+  /**
+   * The change sequence number of the last save of this item, or 0 if it is not known.
+   */
+  private transient long changeSeq;
   private String description = "";
   private String category = "";
   private ItemState state = ItemState.NEED;
   private long lastPurchased;
   private boolean autoDelete;
-  private final Map<String, String> storeAisles = new TreeMap<>();
+  /**
+   * The stores and aisles, as store, aisle, store, aisle, ..., sorted by store. Every item is kept
+   * in memory, so this is an array rather than a map, which would take several times the memory.
+   * The array is never changed, only replaced. In JSON, it is an object mapping stores to aisles.
+   */
+  @JsonAdapter(StoreAislesAdapter.class)
+  private String[] storeAisles = NO_STORE_AISLES;
+
+  private static final String[] NO_STORE_AISLES = new String[0];
 
   public void setId(int id) {
     this.id = id;
+    dirtyFields = ALL_FIELDS;
   }
 
   public int getId() {
     return id;
   }
 
+  int getDirtyFields() {
+    return dirtyFields;
+  }
+
+  void clearDirtyFields() {
+    dirtyFields = 0;
+  }
+
+  long getChangeSeq() {
+    return changeSeq;
+  }
+
+  void setChangeSeq(long changeSeq) {
+    this.changeSeq = changeSeq;
+  }
+
+  /**
+   * Returns a copy of this item, which does not change when this item does. This is cheap, because
+   * the store aisles array is shared rather than copied.
+   */
+  Item copy() {
+    Item copy = new Item();
+    copy.id = id;
+    copy.dirtyFields = dirtyFields;
+    copy.changeSeq = changeSeq;
+    copy.description = description;
+    copy.category = category;
+    copy.state = state;
+    copy.lastPurchased = lastPurchased;
+    copy.autoDelete = autoDelete;
+    copy.storeAisles = storeAisles;
+    return copy;
+  }
+
+  /**
+   * Sets every field of this item, except its id, to the value it has in the given item.
+   *
+   * @return true if any field changed
+   */
+  boolean updateFrom(Item other) {
+    int oldDirtyFields = dirtyFields;
+    dirtyFields = 0;
+    setDescription(other.description);
+    setCategory(other.category);
+    setState(other.state);
+    setLastPurchased(other.lastPurchased);
+    setAutoDelete(other.autoDelete);
+    if (!Arrays.equals(storeAisles, other.storeAisles)) {
+      // The array is never changed, so it can be shared.
+      storeAisles = other.storeAisles;
+      dirtyFields |= FIELD_STORE_AISLES;
+    }
+    boolean changed = dirtyFields != 0;
+    dirtyFields |= oldDirtyFields;
+    return changed;
+  }
+
   public void setDescription(String description) {
-    this.description = description;
+    if (!Objects.equals(this.description, description)) {
+      this.description = description;
+      dirtyFields |= FIELD_DESCRIPTION;
+    }
   }
 
   public String getDescription() {
@@ -54,7 +148,10 @@ public final class Item {
   }
 
   public void setCategory(String category) {
-    this.category = category;
+    if (!Objects.equals(this.category, category)) {
+      this.category = category;
+      dirtyFields |= FIELD_CATEGORY;
+    }
   }
 
   public String getCategory() {
@@ -62,7 +159,10 @@ public final class Item {
   }
 
   public void setState(ItemState state) {
-    this.state = state;
+    if (this.state != state) {
+      this.state = state;
+      dirtyFields |= FIELD_STATE;
+    }
   }
 
   public ItemState getState() {
@@ -70,7 +170,10 @@ public final class Item {
   }
 
   public void setLastPurchased(long lastPurchased) {
-    this.lastPurchased = lastPurchased;
+    if (this.lastPurchased != lastPurchased) {
+      this.lastPurchased = lastPurchased;
+      dirtyFields |= FIELD_LAST_PURCHASED;
+    }
   }
 
   public long getLastPurchased() {
@@ -78,7 +181,10 @@ public final class Item {
   }
 
   public void setAutoDelete(boolean autoDelete) {
-    this.autoDelete = autoDelete;
+    if (this.autoDelete != autoDelete) {
+      this.autoDelete = autoDelete;
+      dirtyFields |= FIELD_AUTO_DELETE;
+    }
   }
 
   public boolean getAutoDelete() {
@@ -86,76 +192,132 @@ public final class Item {
   }
 
   public void clearStoreAisles() {
-    storeAisles.clear();
+    if (storeAisles.length != 0) {
+      storeAisles = NO_STORE_AISLES;
+      dirtyFields |= FIELD_STORE_AISLES;
+    }
   }
 
   public void addStoreAisle(String store, String aisle) {
-    storeAisles.put(store, aisle);
+    int index = indexOfStore(store);
+    if (index >= 0) {
+      if (!aisle.equals(storeAisles[index + 1])) {
+        storeAisles = storeAisles.clone();
+        storeAisles[index + 1] = aisle;
+        dirtyFields |= FIELD_STORE_AISLES;
+      }
+      return;
+    }
+    index = -(index + 1);
+    String[] newStoreAisles = new String[storeAisles.length + 2];
+    System.arraycopy(storeAisles, 0, newStoreAisles, 0, index);
+    newStoreAisles[index] = store;
+    newStoreAisles[index + 1] = aisle;
+    System.arraycopy(storeAisles, index, newStoreAisles, index + 2, storeAisles.length - index);
+    storeAisles = newStoreAisles;
+    dirtyFields |= FIELD_STORE_AISLES;
+  }
+
+  /**
+   * Returns the position of the given store in storeAisles or, if the item doesn't have the store,
+   * -(the position where it would go) - 1.
+   */
+  private int indexOfStore(String store) {
+    int low = 0;
+    int high = storeAisles.length / 2 - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int result = storeAisles[middle * 2].compareTo(store);
+      if (result < 0) {
+        low = middle + 1;
+      } else if (result > 0) {
+        high = middle - 1;
+      } else {
+        return middle * 2;
+      }
+    }
+    return -(low * 2) - 1;
   }
 
   public boolean isMissingStore() {
-    return storeAisles.isEmpty();
+    return storeAisles.length == 0;
   }
 
   public boolean containsStore(String store) {
-    return storeAisles.containsKey(store);
+    return indexOfStore(store) >= 0;
   }
 
   public Iterable<String> getStores() {
-    return storeAisles.keySet();
+    List<String> stores = new ArrayList<>(storeAisles.length / 2);
+    for (int i = 0; i < storeAisles.length; i += 2) {
+      stores.add(storeAisles[i]);
+    }
+    return stores;
   }
 
   public String getAisle(String store) {
-    if (storeAisles.containsKey(store)) {
-      return storeAisles.get(store);
+    int index = indexOfStore(store);
+    if (index >= 0) {
+      return storeAisles[index + 1];
     }
     // If this item isn't available from the store, return ~, which will sort after everything else.
     return "~";
   }
 
   public String getFirstAisle() {
-    for (String aisle : storeAisles.values()) {
-      return aisle;
+    if (storeAisles.length != 0) {
+      return storeAisles[1];
     }
     return "";
   }
 
   public Iterable<String> getAisles() {
-    return new HashSet<>(storeAisles.values());
+    HashSet<String> aisles = new HashSet<>();
+    for (int i = 1; i < storeAisles.length; i += 2) {
+      aisles.add(storeAisles[i]);
+    }
+    return aisles;
   }
 
-  void exportToIntent(Intent intent) {
-    intent.putExtra(EditItem.ITEM_DESCRIPTION, description);
-    intent.putExtra(EditItem.ITEM_CATEGORY, category);
-    intent.putExtra(EditItem.ITEM_LAST_PURCHASED, lastPurchased);
-    intent.putExtra(EditItem.ITEM_AUTO_DELETE, autoDelete);
-
-    List<String> stores = new ArrayList<>();
-    List<String> aisles = new ArrayList<>();
-    for (Map.Entry<String, String> entry : storeAisles.entrySet()) {
-      stores.add(entry.getKey());
-      aisles.add(entry.getValue());
+  /**
+   * Gson adapter that reads and writes storeAisles as a JSON object mapping stores to aisles, as
+   * it was when storeAisles was a map.
+   */
+  static final class StoreAislesAdapter extends TypeAdapter<String[]> {
+    @Override
+    public void write(JsonWriter out, String[] storeAisles) throws IOException {
+      if (storeAisles == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      for (int i = 0; i < storeAisles.length; i += 2) {
+        out.name(storeAisles[i]).value(storeAisles[i + 1]);
+      }
+      out.endObject();
     }
-    String[] storesArray = stores.toArray(new String[0]);
-    intent.putExtra(EditItem.ITEM_STORES, storesArray);
-    String[] aislesArray = aisles.toArray(new String[0]);
-    intent.putExtra(EditItem.ITEM_AISLES, aislesArray);
-  }
-
-  void importFromIntent(Intent intent) {
-    setDescription(intent.getStringExtra(EditItem.ITEM_DESCRIPTION));
-    setCategory(intent.getStringExtra(EditItem.ITEM_CATEGORY));
-    setAutoDelete(intent.getBooleanExtra(EditItem.ITEM_AUTO_DELETE, false));
-
-    String[] stores = intent.getStringArrayExtra(EditItem.ITEM_STORES);
-    String[] aisles = intent.getStringArrayExtra(EditItem.ITEM_AISLES);
-    clearStoreAisles();
-    if (stores.length == aisles.length) {
-      for (int i = 0; i < stores.length; i++) {
-        String store = stores[i];
-        String aisle = aisles[i];
-        addStoreAisle(store, aisle);
+
+    @Override
+    public String[] read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return NO_STORE_AISLES;
+      }
+      // Sort by store, and let a later aisle for the same store win, like a map would.
+      TreeMap<String, String> map = new TreeMap<>();
+      in.beginObject();
+      while (in.hasNext()) {
+        // Items read from JSON share their store and aisle strings.
+        map.put(in.nextName().intern(), in.nextString().intern());
+      }
+      in.endObject();
+      String[] storeAisles = new String[map.size() * 2];
+      int i = 0;
+      for (Map.Entry<String, String> entry : map.entrySet()) {
+        storeAisles[i++] = entry.getKey();
+        storeAisles[i++] = entry.getValue();
       }
+      return storeAisles;
     }
   }
 }
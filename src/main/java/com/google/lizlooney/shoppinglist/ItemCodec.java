@@ -0,0 +1,288 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class encoding items to and decoding items from a compact binary form, without reflection.
+ *
+ * <p>An encoded stream starts with a version byte, followed by any number of values. Integers are
+ * written as varints, 7 bits per byte with the high bit set on all but the last byte. Strings are
+ * written through a string table: the first time a string appears it is written as 0, its UTF-8
+ * length and its UTF-8 bytes, and it is given the next index in the table. After that it is
+ * written as its index plus 1. Stores, aisles and categories repeat a lot, so most strings end up
+ * as a single byte.
+ *
+ * <p>An item is written as its description, its category, a byte holding its state and its
+ * auto-delete flag, its last purchased time, the number of stores, and a store and aisle for each
+ * store. The id is not part of the item's encoding.
+ *
+ * <p>The changed fields of an item can also be written on their own, as a varint holding the
+ * {@code Item.FIELD_*} bits followed by just those fields, in the order of the bits.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ItemCodec {
+  static final byte VERSION = 1;
+
+  private ItemCodec() {
+  }
+
+  /**
+   * Class encoding items. Strings are shared by all the items written to the same encoder.
+   */
+  static final class Encoder {
+    private byte[] bytes = new byte[256];
+    private int length;
+    private final Map<String, Integer> stringTable = new HashMap<>();
+
+    Encoder() {
+      writeByte(VERSION);
+    }
+
+    void writeItem(Item item) {
+      writeString(nonNull(item.getDescription()));
+      writeString(nonNull(item.getCategory()));
+      writeByte((getStateOrdinal(item) << 1) | (item.getAutoDelete() ? 1 : 0));
+      writeVarLong(item.getLastPurchased());
+      writeStoreAisles(item);
+    }
+
+    /**
+     * Writes the given fields of the given item.
+     */
+    void writeItemFields(Item item, int fields) {
+      writeVarInt(fields);
+      if ((fields & Item.FIELD_DESCRIPTION) != 0) {
+        writeString(nonNull(item.getDescription()));
+      }
+      if ((fields & Item.FIELD_CATEGORY) != 0) {
+        writeString(nonNull(item.getCategory()));
+      }
+      if ((fields & Item.FIELD_STATE) != 0) {
+        writeByte(getStateOrdinal(item));
+      }
+      if ((fields & Item.FIELD_LAST_PURCHASED) != 0) {
+        writeVarLong(item.getLastPurchased());
+      }
+      if ((fields & Item.FIELD_AUTO_DELETE) != 0) {
+        writeByte(item.getAutoDelete() ? 1 : 0);
+      }
+      if ((fields & Item.FIELD_STORE_AISLES) != 0) {
+        writeStoreAisles(item);
+      }
+    }
+
+    // Gson sets a field to null when the JSON has an explicit null. Gson leaves null fields out
+    // when it writes an item, so they are read back as their defaults. They are written here as
+    // those defaults, so that decoding gives the same item as a Gson round trip.
+
+    private static String nonNull(String s) {
+      return (s != null) ? s : "";
+    }
+
+    private static int getStateOrdinal(Item item) {
+      return (item.getState() != null) ? item.getState().ordinal() : ItemState.NEED.ordinal();
+    }
+
+    private void writeStoreAisles(Item item) {
+      List<String> stores = new ArrayList<>();
+      for (String store : item.getStores()) {
+        stores.add(store);
+      }
+      writeVarInt(stores.size());
+      for (String store : stores) {
+        writeString(store);
+        writeString(item.getAisle(store));
+      }
+    }
+
+    void writeByte(int b) {
+      ensureCapacity(1);
+      bytes[length++] = (byte) b;
+    }
+
+    void writeVarInt(int value) {
+      writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    void writeVarLong(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+
+    void writeString(String s) {
+      Integer index = stringTable.get(s);
+      if (index != null) {
+        writeVarInt(index + 1);
+        return;
+      }
+      stringTable.put(s, stringTable.size());
+      byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(0);
+      writeVarInt(utf8.length);
+      ensureCapacity(utf8.length);
+      System.arraycopy(utf8, 0, bytes, length, utf8.length);
+      length += utf8.length;
+    }
+
+    private void ensureCapacity(int needed) {
+      if (length + needed > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + needed));
+      }
+    }
+
+    int size() {
+      return length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, length);
+    }
+  }
+
+  /**
+   * Class decoding items. Reading past the end of the buffer throws BufferUnderflowException and
+   * reading something that was not written by an Encoder throws IllegalArgumentException.
+   */
+  static final class Decoder {
+    private static final ItemState[] STATES = ItemState.values();
+
+    private final ByteBuffer buffer;
+    private final List<String> stringTable = new ArrayList<>();
+
+    Decoder(ByteBuffer buffer) {
+      this.buffer = buffer;
+      byte version = buffer.get();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unsupported version " + version);
+      }
+    }
+
+    boolean hasRemaining() {
+      return buffer.hasRemaining();
+    }
+
+    Item readItem() {
+      Item item = new Item();
+      item.setDescription(readString());
+      item.setCategory(readString());
+      int stateAndAutoDelete = readByte();
+      item.setState(readState(stateAndAutoDelete >> 1));
+      item.setAutoDelete((stateAndAutoDelete & 1) != 0);
+      item.setLastPurchased(readVarLong());
+      readStoreAisles(item);
+      return item;
+    }
+
+    /**
+     * Reads fields written by {@link Encoder#writeItemFields} into the given item.
+     */
+    void readItemFields(Item item) {
+      int fields = readVarInt();
+      if ((fields & Item.FIELD_DESCRIPTION) != 0) {
+        item.setDescription(readString());
+      }
+      if ((fields & Item.FIELD_CATEGORY) != 0) {
+        item.setCategory(readString());
+      }
+      if ((fields & Item.FIELD_STATE) != 0) {
+        item.setState(readState(readByte()));
+      }
+      if ((fields & Item.FIELD_LAST_PURCHASED) != 0) {
+        item.setLastPurchased(readVarLong());
+      }
+      if ((fields & Item.FIELD_AUTO_DELETE) != 0) {
+        item.setAutoDelete(readByte() != 0);
+      }
+      if ((fields & Item.FIELD_STORE_AISLES) != 0) {
+        item.clearStoreAisles();
+        readStoreAisles(item);
+      }
+    }
+
+    private void readStoreAisles(Item item) {
+      int storeCount = readVarInt();
+      for (int i = 0; i < storeCount; i++) {
+        String store = readString();
+        item.addStoreAisle(store, readString());
+      }
+    }
+
+    private static ItemState readState(int state) {
+      if (state >= STATES.length) {
+        throw new IllegalArgumentException("Bad state " + state);
+      }
+      return STATES[state];
+    }
+
+    int readByte() {
+      return buffer.get() & 0xFF;
+    }
+
+    int readVarInt() {
+      long value = readVarLong();
+      if ((value & ~0xFFFFFFFFL) != 0) {
+        throw new IllegalArgumentException("Bad varint " + value);
+      }
+      return (int) value;
+    }
+
+    long readVarLong() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = buffer.get();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Bad varint");
+    }
+
+    String readString() {
+      int index = readVarInt();
+      if (index != 0) {
+        if (index > stringTable.size()) {
+          throw new IllegalArgumentException("Bad string index " + index);
+        }
+        return stringTable.get(index - 1);
+      }
+      int utf8Length = readVarInt();
+      if (utf8Length > buffer.remaining()) {
+        throw new BufferUnderflowException();
+      }
+      byte[] utf8 = new byte[utf8Length];
+      buffer.get(utf8);
+      String s = new String(utf8, StandardCharsets.UTF_8);
+      stringTable.add(s);
+      return s;
+    }
+  }
+}
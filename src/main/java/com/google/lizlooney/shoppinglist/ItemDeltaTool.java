@@ -0,0 +1,134 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command line tool that applies exported changes to a full export, giving the full export that
+ * the changes bring it up to. It runs off the device, for example:
+ *
+ * <pre>
+ * bazel build //src/main/java/com/google/lizlooney/shoppinglist:item_delta_tool
+ * bazel-bin/src/main/java/com/google/lizlooney/shoppinglist/item_delta_tool \
+ *     ShoppingList.out ShoppingList.1200-1250.delta ShoppingList.new
+ * </pre>
+ *
+ * <p>The full export may be in any {@link ExportFormat}, and the new one is written as JSON.
+ * Several change files can be given, oldest first; each must start where the one before it ended.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+public final class ItemDeltaTool {
+  private final Gson gson = new Gson();
+  private final JsonParser jsonParser = new JsonParser();
+  private final Map<Integer, Item> items = new LinkedHashMap<>();
+  /**
+   * The change sequence number that the items are up to, or -1 if it is not known.
+   */
+  private long seq = -1;
+
+  private ItemDeltaTool() {
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 3) {
+      System.err.println(
+          "Usage: ItemDeltaTool <full export> <changes>... <new full export>");
+      System.exit(2);
+    }
+    ItemDeltaTool tool = new ItemDeltaTool();
+    try {
+      tool.readExport(new File(args[0]));
+      for (int i = 1; i < args.length - 1; i++) {
+        tool.applyChanges(new File(args[i]));
+      }
+      ItemExporter.export(new ArrayList<>(tool.items.values()), new File(args[args.length - 1]));
+    } catch (IOException | JsonParseException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private void readExport(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      for (Item item : ItemImporter.readFile(in, null)) {
+        if (items.put(item.getId(), item) != null) {
+          throw new IOException(file + " has no item ids. Export all the items again.");
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void applyChanges(File file) throws IOException {
+    JsonReader reader = new JsonReader(newReader(file));
+    try {
+      // Lenient, so that the file can hold any number of JSON objects instead of just one.
+      reader.setLenient(true);
+      JsonObject header = jsonParser.parse(reader).getAsJsonObject();
+      long fromSeq = header.get("fromSeq").getAsLong();
+      if (seq != -1 && fromSeq != seq) {
+        throw new IOException(file + " starts at change " + fromSeq + " but the changes before it"
+            + " end at change " + seq);
+      }
+      seq = header.get("toSeq").getAsLong();
+      if (header.get("reset").getAsBoolean()) {
+        items.clear();
+      }
+      while (reader.peek() != JsonToken.END_DOCUMENT) {
+        JsonObject change = jsonParser.parse(reader).getAsJsonObject();
+        int id = change.get("id").getAsInt();
+        if (change.has("deleted")) {
+          items.remove(id);
+        } else {
+          Item item = gson.fromJson(change, Item.class);
+          item.setId(id);
+          items.put(id, item);
+        }
+      }
+    } catch (IllegalStateException | NullPointerException e) {
+      // A value has the wrong type or is missing.
+      throw new JsonParseException("Bad changes in " + file, e);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static Reader newReader(File file) throws IOException {
+    return new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class writing items to an export file, one item per line as a JSON object, in the form that
+ * {@link ItemImporter} reads.
+ *
+ * <p>Besides a full export, it can write the changes since an earlier export: a header line
+ * {@code {"fromSeq":...,"toSeq":...,"reset":...}}, then a line for each item that was saved since
+ * then and a line {@code {"id":...,"deleted":true}} for each item that was deleted since then.
+ * Items are matched by id, so the changes apply only to the export they follow. If reset is true,
+ * all the items were replaced since the earlier export, and the changes hold every item. See
+ * {@link ItemDeltaTool}.
+ *
+ * <p>Items are written field by field with a JsonWriter straight to a buffered stream, without a
+ * String per item and without reflection. The JSON can be compressed with gzip, or the items can be
+ * written in a binary form instead; see {@link ExportFormat}. The file is written to a temporary
+ * file that is renamed when it is complete, so a failed export never leaves a partial file behind.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ItemExporter {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /**
+   * The number of items in a block of a binary export.
+   */
+  private static final int BINARY_BLOCK_ITEM_COUNT = 1024;
+
+  private ItemExporter() {
+  }
+
+  /**
+   * Writes the given items to the given file. The items must not change while they are written;
+   * see {@link Item#copy}.
+   */
+  static void export(List<Item> items, File file) throws IOException {
+    export(items, file, ExportFormat.JSON);
+  }
+
+  /**
+   * Writes the given items to the given file in the given format. The items must not change while
+   * they are written; see {@link Item#copy}.
+   */
+  static void export(List<Item> items, File file, ExportFormat format) throws IOException {
+    write(items, null, file, format);
+  }
+
+  /**
+   * Writes the given changes to the given file. The items must not change while they are written.
+   *
+   * @param fromSeq the change sequence number of the earlier export
+   * @param toSeq the change sequence number that the changes bring the earlier export up to
+   * @param changedItems the items saved after fromSeq, or all the items if deletedIds is null
+   * @param deletedIds the ids of the items deleted after fromSeq, or null if all the items were
+   *     replaced after fromSeq
+   */
+  static void exportChanges(long fromSeq, long toSeq, List<Item> changedItems,
+      List<Integer> deletedIds, File file) throws IOException {
+    write(changedItems, new Changes(fromSeq, toSeq, deletedIds), file, ExportFormat.JSON);
+  }
+
+  private static void write(List<Item> items, Changes changes, File file, ExportFormat format)
+      throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tempFile);
+    try {
+      switch (format) {
+        default:
+        case JSON:
+          writeJson(items, changes, out);
+          break;
+        case GZIP_JSON:
+          GZIPOutputStream gzipOut = new GZIPOutputStream(out, BUFFER_SIZE);
+          writeJson(items, changes, gzipOut);
+          gzipOut.finish();
+          break;
+        case BINARY:
+          writeBinary(items, out);
+          break;
+      }
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      throw new IOException("Could not rename " + tempFile + " to " + file);
+    }
+  }
+
+  private static void writeJson(List<Item> items, Changes changes, OutputStream out)
+      throws IOException {
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    JsonWriter jsonWriter = new JsonWriter(writer);
+    // Lenient, so that the file can hold any number of JSON objects instead of just one.
+    jsonWriter.setLenient(true);
+    if (changes != null) {
+      jsonWriter.beginObject();
+      jsonWriter.name("fromSeq").value(changes.fromSeq);
+      jsonWriter.name("toSeq").value(changes.toSeq);
+      jsonWriter.name("reset").value(changes.deletedIds == null);
+      jsonWriter.endObject();
+      writer.write('\n');
+    }
+    for (Item item : items) {
+      writeItem(jsonWriter, item);
+      // JsonWriter doesn't buffer, so the newline follows the item.
+      writer.write('\n');
+    }
+    if (changes != null && changes.deletedIds != null) {
+      for (int id : changes.deletedIds) {
+        jsonWriter.beginObject();
+        jsonWriter.name("id").value(id);
+        jsonWriter.name("deleted").value(true);
+        jsonWriter.endObject();
+        writer.write('\n');
+      }
+    }
+    writer.flush();
+  }
+
+  private static void writeBinary(List<Item> items, OutputStream out) throws IOException {
+    DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+    dataOut.writeInt(ExportFormat.BINARY_MAGIC);
+    dataOut.writeByte(ExportFormat.BINARY_VERSION);
+    for (int start = 0; start < items.size(); start += BINARY_BLOCK_ITEM_COUNT) {
+      int end = Math.min(start + BINARY_BLOCK_ITEM_COUNT, items.size());
+      // Each block has its own string table, so a block can be decoded on its own.
+      ItemCodec.Encoder encoder = new ItemCodec.Encoder();
+      encoder.writeVarInt(end - start);
+      for (Item item : items.subList(start, end)) {
+        encoder.writeVarInt(item.getId());
+        encoder.writeItem(item);
+      }
+      byte[] block = encoder.toByteArray();
+      dataOut.writeInt(block.length);
+      dataOut.write(block);
+    }
+    dataOut.writeInt(0);
+    dataOut.flush();
+  }
+
+  private static void writeItem(JsonWriter writer, Item item) throws IOException {
+    writer.beginObject();
+    writer.name("id").value(item.getId());
+    writer.name("description").value(item.getDescription());
+    writer.name("category").value(item.getCategory());
+    writer.name("state").value(item.getState().name());
+    writer.name("lastPurchased").value(item.getLastPurchased());
+    writer.name("autoDelete").value(item.getAutoDelete());
+    writer.name("storeAisles").beginObject();
+    for (String store : item.getStores()) {
+      writer.name(store).value(item.getAisle(store));
+    }
+    writer.endObject();
+    writer.endObject();
+  }
+
+  private static final class Changes {
+    final long fromSeq;
+    final long toSeq;
+    final List<Integer> deletedIds;
+
+    Changes(long fromSeq, long toSeq, List<Integer> deletedIds) {
+      this.fromSeq = fromSeq;
+      this.toSeq = toSeq;
+      this.deletedIds = deletedIds;
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.util.BitSet;
+
+/**
+ * Class keeping track of which item ids are in use.
+ *
+ * <p>Ids from 0 to the max item id that are not in use are free, and are handed out, lowest
+ * first, before the max item id grows. The free ids are kept in a BitSet and persisted as a list of
+ * ranges, such as "0-3,7,9-12", which stays short even after many deletes.
+ *
+ * <p>This class is not thread safe.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ItemIdAllocator {
+  private int maxItemId = -1;
+  private final BitSet freeIds = new BitSet();
+
+  /**
+   * Resets this allocator so that exactly the given ids are in use.
+   */
+  void reset(BitSet usedIds) {
+    maxItemId = usedIds.length() - 1;
+    freeIds.clear();
+    freeIds.set(0, maxItemId + 1);
+    freeIds.andNot(usedIds);
+  }
+
+  int getMaxItemId() {
+    return maxItemId;
+  }
+
+  int getFreeCount() {
+    return freeIds.cardinality();
+  }
+
+  boolean isFree(int id) {
+    return id > maxItemId || freeIds.get(id);
+  }
+
+  int allocate() {
+    int id = freeIds.nextSetBit(0);
+    if (id != -1) {
+      freeIds.clear(id);
+      return id;
+    }
+    maxItemId++;
+    return maxItemId;
+  }
+
+  void release(int id) {
+    if (id > maxItemId) {
+      return;
+    }
+    freeIds.set(id);
+    // Keep the max item id as low as possible.
+    while (maxItemId >= 0 && freeIds.get(maxItemId)) {
+      freeIds.clear(maxItemId);
+      maxItemId--;
+    }
+  }
+
+  /**
+   * Returns the free ids as a list of ranges.
+   */
+  String encodeFreeIds() {
+    StringBuilder sb = new StringBuilder();
+    for (int start = freeIds.nextSetBit(0); start != -1; ) {
+      int end = freeIds.nextClearBit(start) - 1;
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(start);
+      if (end != start) {
+        sb.append('-').append(end);
+      }
+      start = freeIds.nextSetBit(end + 1);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Sets the max item id and the free ids, as returned by {@link #encodeFreeIds}.
+   *
+   * @throws NumberFormatException if encodedFreeIds is not valid
+   */
+  void decode(int maxItemId, String encodedFreeIds) {
+    this.maxItemId = maxItemId;
+    freeIds.clear();
+    if (encodedFreeIds.isEmpty()) {
+      return;
+    }
+    for (String range : encodedFreeIds.split(",")) {
+      int dash = range.indexOf('-');
+      if (dash == -1) {
+        freeIds.set(Integer.parseInt(range));
+      } else {
+        int start = Integer.parseInt(range.substring(0, dash));
+        int end = Integer.parseInt(range.substring(dash + 1));
+        freeIds.set(start, end + 1);
+      }
+    }
+  }
+}
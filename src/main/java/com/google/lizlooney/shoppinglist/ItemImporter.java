@@ -0,0 +1,389 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.BufferedInputStream;
+import java.io.CharArrayReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Class reading items from an import file, which holds one item per line as a JSON object, the
+ * way they are exported.
+ *
+ * <p>The file is cut into chunks of whole lines, and the chunks are parsed in parallel by a pool
+ * of threads. Each chunk is parsed with a JsonReader, field by field, without a String per line
+ * and without reflection. The parsed chunks are collected in file order, so the items come out in
+ * the same order as they are in the file. Only a few chunks are read ahead of the oldest one that
+ * is still being parsed, which bounds the memory used by the file contents.
+ *
+ * <p>{@link #readFile} also reads the other formats that {@link ItemExporter} writes, recognizing
+ * the format from the start of the file.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ItemImporter {
+  /**
+   * The number of chars in a chunk, unless a line is longer than that.
+   */
+  private static final int CHUNK_SIZE = 64 * 1024;
+  /**
+   * The size of the buffers used for decompressing and for reading binary files.
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /**
+   * The number of chunks per parsing thread that can be read ahead of the oldest one that is still
+   * being parsed.
+   */
+  private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
+
+  /**
+   * Interface for following the progress of an import.
+   */
+  interface ProgressListener {
+    /**
+     * Called after each chunk of items is read.
+     *
+     * @param itemCount the number of items read so far
+     * @param elapsedMs the time since reading started
+     */
+    void onProgress(int itemCount, long elapsedMs);
+  }
+
+  private final Reader reader;
+  private final int threadCount;
+  private char[] buffer = new char[CHUNK_SIZE];
+  private int bufferLength;
+  private int lineCount;
+
+  /**
+   * Creates an importer that parses with as many threads as there are processors.
+   */
+  ItemImporter(Reader reader) {
+    this(reader, Runtime.getRuntime().availableProcessors());
+  }
+
+  ItemImporter(Reader reader, int threadCount) {
+    this.reader = reader;
+    this.threadCount = Math.max(threadCount, 1);
+  }
+
+  /**
+   * Reads all the items from the given export file, in any {@link ExportFormat}. The stream is not
+   * closed.
+   *
+   * @param progressListener the listener to call with progress, or null
+   * @throws JsonSyntaxException if the file holds something that is not an item
+   */
+  static List<Item> readFile(InputStream in, ProgressListener progressListener)
+      throws IOException {
+    if (!in.markSupported()) {
+      in = new BufferedInputStream(in, BUFFER_SIZE);
+    }
+    switch (ExportFormat.detect(in)) {
+      default:
+      case JSON:
+        return new ItemImporter(new InputStreamReader(in, StandardCharsets.UTF_8))
+            .readItems(progressListener);
+      case GZIP_JSON:
+        // The compressed file may hold any format.
+        return readFile(new GZIPInputStream(in, BUFFER_SIZE), progressListener);
+      case BINARY:
+        return readBinary(new DataInputStream(in), progressListener);
+    }
+  }
+
+  private static List<Item> readBinary(DataInputStream in, ProgressListener progressListener)
+      throws IOException {
+    long startTime = System.currentTimeMillis();
+    in.readInt(); // The magic number, which was already checked.
+    byte version = in.readByte();
+    if (version != ExportFormat.BINARY_VERSION) {
+      throw new IOException("Unsupported binary export version " + version);
+    }
+    List<Item> items = new ArrayList<>();
+    while (true) {
+      int blockLength = in.readInt();
+      if (blockLength == 0) {
+        break;
+      }
+      if (blockLength < 0) {
+        throw new IOException("Bad block length " + blockLength);
+      }
+      byte[] block = new byte[blockLength];
+      in.readFully(block);
+      try {
+        ItemCodec.Decoder decoder = new ItemCodec.Decoder(ByteBuffer.wrap(block));
+        int count = decoder.readVarInt();
+        for (int i = 0; i < count; i++) {
+          int id = decoder.readVarInt();
+          Item item = decoder.readItem();
+          item.setId(id);
+          items.add(item);
+        }
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        throw new IOException("Bad block after item " + items.size(), e);
+      }
+      if (progressListener != null) {
+        progressListener.onProgress(items.size(), System.currentTimeMillis() - startTime);
+      }
+    }
+    if (progressListener != null && items.isEmpty()) {
+      progressListener.onProgress(0, System.currentTimeMillis() - startTime);
+    }
+    return items;
+  }
+
+  /**
+   * Reads all the items.
+   *
+   * @param progressListener the listener to call with progress, or null
+   * @throws JsonSyntaxException if the file holds something that is not an item
+   */
+  List<Item> readItems(ProgressListener progressListener) throws IOException {
+    long startTime = System.currentTimeMillis();
+    List<Item> items = new ArrayList<>();
+    ExecutorService parsers = Executors.newFixedThreadPool(threadCount);
+    Queue<Future<List<Item>>> chunksInFlight = new ArrayDeque<>();
+    try {
+      while (true) {
+        final int firstLine = lineCount + 1;
+        final char[] chunk = readChunk();
+        if (chunk == null) {
+          break;
+        }
+        chunksInFlight.add(parsers.submit(new Callable<List<Item>>() {
+          @Override
+          public List<Item> call() throws IOException {
+            return new ChunkParser(chunk, firstLine).parse();
+          }
+        }));
+        if (chunksInFlight.size() >= threadCount * CHUNKS_IN_FLIGHT_PER_THREAD) {
+          collect(chunksInFlight.remove(), items, progressListener, startTime);
+        }
+      }
+      while (!chunksInFlight.isEmpty()) {
+        collect(chunksInFlight.remove(), items, progressListener, startTime);
+      }
+    } finally {
+      parsers.shutdownNow();
+    }
+    if (progressListener != null && items.isEmpty()) {
+      progressListener.onProgress(0, System.currentTimeMillis() - startTime);
+    }
+    return items;
+  }
+
+  void close() throws IOException {
+    reader.close();
+  }
+
+  private static void collect(Future<List<Item>> parsedChunk, List<Item> items,
+      ProgressListener progressListener, long startTime) throws IOException {
+    try {
+      items.addAll(parsedChunk.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw (Error) cause;
+    }
+    if (progressListener != null) {
+      progressListener.onProgress(items.size(), System.currentTimeMillis() - startTime);
+    }
+  }
+
+  /**
+   * Reads the next chunk, which ends at the end of a line or of the file.
+   *
+   * @return the chunk, or null at the end of the file
+   */
+  private char[] readChunk() throws IOException {
+    int searchFrom = 0;
+    while (true) {
+      int lastNewline = lastIndexOf('\n', searchFrom);
+      if (lastNewline != -1 && bufferLength == buffer.length) {
+        return takeChunk(lastNewline + 1);
+      }
+      if (bufferLength == buffer.length) {
+        // The buffer holds part of one long line.
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      searchFrom = bufferLength;
+      int count = reader.read(buffer, bufferLength, buffer.length - bufferLength);
+      if (count == -1) {
+        return (bufferLength > 0) ? takeChunk(bufferLength) : null;
+      }
+      bufferLength += count;
+      if (lastNewline != -1) {
+        searchFrom = lastNewline;
+      }
+    }
+  }
+
+  private int lastIndexOf(char c, int from) {
+    for (int i = bufferLength - 1; i >= from; i--) {
+      if (buffer[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the first length chars of the buffer and moves the rest to the start.
+   */
+  private char[] takeChunk(int length) {
+    char[] chunk = Arrays.copyOf(buffer, length);
+    for (char c : chunk) {
+      if (c == '\n') {
+        lineCount++;
+      }
+    }
+    System.arraycopy(buffer, length, buffer, 0, bufferLength - length);
+    bufferLength -= length;
+    return chunk;
+  }
+
+  /**
+   * Class parsing the items in one chunk.
+   */
+  private static final class ChunkParser {
+    private final JsonReader reader;
+    private final int firstLine;
+    private final Map<String, String> strings = new HashMap<>();
+
+    ChunkParser(char[] chunk, int firstLine) {
+      reader = new JsonReader(new CharArrayReader(chunk));
+      // Lenient, so that the chunk can hold any number of JSON objects instead of just one.
+      reader.setLenient(true);
+      this.firstLine = firstLine;
+    }
+
+    List<Item> parse() throws IOException {
+      List<Item> items = new ArrayList<>();
+      while (reader.peek() != JsonToken.END_DOCUMENT) {
+        items.add(readItem());
+      }
+      return items;
+    }
+
+    private Item readItem() throws IOException {
+      Item item = new Item();
+      try {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String name = reader.nextName();
+          if (reader.peek() == JsonToken.NULL) {
+            // Leave the field as it is in a new item.
+            reader.skipValue();
+            continue;
+          }
+          switch (name) {
+            case "id":
+              item.setId(reader.nextInt());
+              break;
+            case "description":
+              item.setDescription(reader.nextString());
+              break;
+            case "category":
+              item.setCategory(share(reader.nextString()));
+              break;
+            case "state":
+              item.setState(readState());
+              break;
+            case "lastPurchased":
+              item.setLastPurchased(reader.nextLong());
+              break;
+            case "autoDelete":
+              item.setAutoDelete(reader.nextBoolean());
+              break;
+            case "storeAisles":
+              reader.beginObject();
+              while (reader.hasNext()) {
+                String store = share(reader.nextName());
+                item.addStoreAisle(store, share(reader.nextString()));
+              }
+              reader.endObject();
+              break;
+            default:
+              reader.skipValue();
+              break;
+          }
+        }
+        reader.endObject();
+      } catch (IllegalStateException | NumberFormatException e) {
+        // The value has the wrong type, for example a string where an object belongs.
+        throw new JsonSyntaxException("Bad item" + locationString(), e);
+      }
+      return item;
+    }
+
+    private ItemState readState() throws IOException {
+      String name = reader.nextString();
+      try {
+        return ItemState.valueOf(name);
+      } catch (IllegalArgumentException e) {
+        throw new JsonSyntaxException("Bad state " + name + locationString(), e);
+      }
+    }
+
+    private String locationString() {
+      // JsonReader.toString gives the line and column within the chunk.
+      return " in the chunk starting at line " + firstLine + ", " + reader;
+    }
+
+    private String share(String s) {
+      String shared = strings.get(s);
+      if (shared == null) {
+        strings.put(s, s);
+        shared = s;
+      }
+      return shared;
+    }
+  }
+}
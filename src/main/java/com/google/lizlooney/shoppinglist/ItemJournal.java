@@ -0,0 +1,357 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Class maintaining an append-only journal of changes to items.
+ *
+ * <p>Each record is written as its length, a CRC32 of its body, and its body. The body is an
+ * operation byte, the item id, the change sequence number, and a payload encoded by
+ * {@link ItemCodec}. For a put, the payload is the whole item. For a delta, it is only the fields
+ * that changed since the item was last saved, which are applied to the item as it was. A delete
+ * has no payload. A batch record holds any number of puts, deltas and deletes that are applied
+ * all together or not at all; its id is -1. Change sequence numbers increase with every change,
+ * so they tell whether a record is newer than a snapshot.
+ *
+ * <p>A record that was only partly written when the app died fails its length or CRC check; it
+ * and everything after it are ignored when reading and cut off when the journal is opened for
+ * appending.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ItemJournal {
+  private static final byte OP_PUT = 1;
+  private static final byte OP_DELETE = 2;
+  private static final byte OP_BATCH = 3;
+  private static final byte OP_DELTA = 4;
+  private static final int HEADER_LENGTH = 1 + 4 + 8;
+
+  private final File file;
+  private final FileOutputStream fileOutputStream;
+  private final BufferedOutputStream outputStream;
+  private int recordCount;
+
+  /**
+   * Opens the given journal file for appending, creating it if necessary.
+   */
+  ItemJournal(File file) throws IOException {
+    this.file = file;
+    Scan scan = scan(file, 0, null);
+    recordCount = scan.recordCount;
+    if (file.exists() && file.length() != scan.validLength) {
+      // Cut off the record that was being written when the app died.
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(scan.validLength);
+      } finally {
+        randomAccessFile.close();
+      }
+    }
+    fileOutputStream = new FileOutputStream(file, true);
+    outputStream = new BufferedOutputStream(fileOutputStream);
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  int getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Interface for loading an item as it was before the journal, so that a delta can be applied to
+   * it.
+   */
+  interface BaseItemLoader {
+    /**
+     * Returns the item with the given id, or null if there is no such item.
+     */
+    Item load(int id);
+  }
+
+  /**
+   * Appends a record that saves the given item. If only some of the item's fields are dirty, only
+   * those fields are written.
+   */
+  void appendSave(long seq, Item item) throws IOException {
+    byte op = getSaveOp(item);
+    ItemCodec.Encoder encoder = new ItemCodec.Encoder();
+    writeSave(encoder, op, item);
+    append(op, seq, item.getId(), encoder.toByteArray());
+  }
+
+  private static byte getSaveOp(Item item) {
+    return (item.getDirtyFields() == Item.ALL_FIELDS) ? OP_PUT : OP_DELTA;
+  }
+
+  private static void writeSave(ItemCodec.Encoder encoder, byte op, Item item) {
+    if (op == OP_PUT) {
+      encoder.writeItem(item);
+    } else {
+      encoder.writeItemFields(item, item.getDirtyFields());
+    }
+  }
+
+  void appendDelete(long seq, int id) throws IOException {
+    append(OP_DELETE, seq, id, null);
+  }
+
+  /**
+   * Appends one record that deletes and saves the given items together. Like appendSave, only
+   * the dirty fields of each item are written.
+   */
+  void appendBatch(long seq, Collection<Item> itemsToSave, Collection<Integer> idsToDelete)
+      throws IOException {
+    ItemCodec.Encoder encoder = new ItemCodec.Encoder();
+    encoder.writeVarInt(idsToDelete.size() + itemsToSave.size());
+    for (int id : idsToDelete) {
+      encoder.writeByte(OP_DELETE);
+      encoder.writeVarInt(id);
+    }
+    for (Item item : itemsToSave) {
+      byte op = getSaveOp(item);
+      encoder.writeByte(op);
+      encoder.writeVarInt(item.getId());
+      writeSave(encoder, op, item);
+    }
+    append(OP_BATCH, seq, -1, encoder.toByteArray());
+  }
+
+  private void append(byte op, long seq, int id, byte[] payload) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream bodyOut = new DataOutputStream(body);
+    bodyOut.writeByte(op);
+    bodyOut.writeInt(id);
+    bodyOut.writeLong(seq);
+    if (payload != null) {
+      bodyOut.write(payload);
+    }
+    byte[] bodyBytes = body.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bodyBytes);
+
+    ByteArrayOutputStream record = new ByteArrayOutputStream(8 + bodyBytes.length);
+    DataOutputStream recordOut = new DataOutputStream(record);
+    recordOut.writeInt(bodyBytes.length);
+    recordOut.writeInt((int) crc.getValue());
+    recordOut.write(bodyBytes);
+    // Write the whole record at once so that concurrent calls to sync never see part of it.
+    outputStream.write(record.toByteArray());
+    recordCount++;
+  }
+
+  /**
+   * Writes the appended records to disk and waits until they are there.
+   */
+  void sync() throws IOException {
+    outputStream.flush();
+    fileOutputStream.getFD().sync();
+  }
+
+  void close() throws IOException {
+    sync();
+    outputStream.close();
+  }
+
+  /**
+   * Replays the records in the given journal file that are newer than the given change sequence
+   * number into the given map. After a put, the map holds the item for its id. After a delete, it
+   * holds null for the id. A delta is applied to the item in the map or, if the map has no entry
+   * for the id, to the item returned by baseItemLoader. Each saved item is given the change
+   * sequence number of its record. A record that cannot be decoded ends the replay, like a torn
+   * record.
+   *
+   * @param baseItemLoader loads items that are not in the map, or null if the map already holds
+   *     every item
+   * @param deletedSeqs if not null, gets the change sequence number of each delete, by id
+   * @return the highest change sequence number in the journal, or afterSeq if it is higher
+   */
+  static long replay(File file, long afterSeq, Map<Integer, Item> items,
+      BaseItemLoader baseItemLoader, Map<Integer, Long> deletedSeqs) throws IOException {
+    Replay replay = new Replay(items, baseItemLoader, deletedSeqs);
+    return scan(file, afterSeq, replay).maxSeq;
+  }
+
+  /**
+   * The state of a replay.
+   */
+  private static final class Replay {
+    final Map<Integer, Item> items;
+    final BaseItemLoader baseItemLoader;
+    final Map<Integer, Long> deletedSeqs;
+    long seq;
+
+    Replay(Map<Integer, Item> items, BaseItemLoader baseItemLoader,
+        Map<Integer, Long> deletedSeqs) {
+      this.items = items;
+      this.baseItemLoader = baseItemLoader;
+      this.deletedSeqs = deletedSeqs;
+    }
+  }
+
+  private static final class Scan {
+    long validLength;
+    int recordCount;
+    long maxSeq;
+  }
+
+  private static Scan scan(File file, long afterSeq, Replay replay) throws IOException {
+    Scan scan = new Scan();
+    scan.maxSeq = afterSeq;
+    if (!file.exists()) {
+      return scan;
+    }
+    long fileLength = file.length();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      CRC32 crc = new CRC32();
+      while (scan.validLength + 8 <= fileLength) {
+        int bodyLength = in.readInt();
+        int expectedCrc = in.readInt();
+        if (bodyLength < HEADER_LENGTH || scan.validLength + 8 + bodyLength > fileLength) {
+          break;
+        }
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+        crc.reset();
+        crc.update(body);
+        if ((int) crc.getValue() != expectedCrc) {
+          break;
+        }
+        ByteBuffer header = ByteBuffer.wrap(body, 0, HEADER_LENGTH);
+        byte op = header.get();
+        int id = header.getInt();
+        long seq = header.getLong();
+        if (seq > scan.maxSeq) {
+          if (replay != null) {
+            replay.seq = seq;
+            if (!apply(op, id, body, replay)) {
+              break;
+            }
+          }
+          scan.maxSeq = seq;
+        }
+        scan.validLength += 8 + bodyLength;
+        scan.recordCount++;
+      }
+    } catch (EOFException e) {
+      // The rest of the file is a partly written record.
+    } finally {
+      in.close();
+    }
+    return scan;
+  }
+
+  private static boolean apply(byte op, int id, byte[] body, Replay replay) {
+    try {
+      if (op == OP_BATCH) {
+        // Make sure the whole batch can be decoded before applying any of it.
+        applyBatch(newDecoder(body), null);
+        applyBatch(newDecoder(body), replay);
+        return true;
+      }
+      if (op == OP_DELTA) {
+        // Make sure the delta can be decoded before applying any of it.
+        newDecoder(body).readItemFields(new Item());
+      }
+      // A delete has no payload to decode.
+      applyOne(op, id, (op != OP_DELETE) ? newDecoder(body) : null, replay);
+      return true;
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Applies the entries of a batch or, if replay is null, only decodes them.
+   */
+  private static void applyBatch(ItemCodec.Decoder decoder, Replay replay) {
+    int count = decoder.readVarInt();
+    for (int i = 0; i < count; i++) {
+      byte op = (byte) decoder.readByte();
+      int id = decoder.readVarInt();
+      if (replay == null) {
+        applyOne(op, id, decoder, new Replay(new HashMap<Integer, Item>(), null, null));
+      } else {
+        applyOne(op, id, decoder, replay);
+      }
+    }
+  }
+
+  private static void applyOne(byte op, int id, ItemCodec.Decoder decoder, Replay replay) {
+    Map<Integer, Item> items = replay.items;
+    switch (op) {
+      case OP_PUT: {
+        Item item = decoder.readItem();
+        item.setId(id);
+        item.setChangeSeq(replay.seq);
+        items.put(id, item);
+        return;
+      }
+      case OP_DELTA: {
+        Item item;
+        if (items.containsKey(id)) {
+          item = items.get(id);
+        } else {
+          item = (replay.baseItemLoader != null) ? replay.baseItemLoader.load(id) : null;
+        }
+        if (item == null) {
+          // The item was deleted. Decode the delta anyway, to get to the next entry.
+          item = new Item();
+          decoder.readItemFields(item);
+          return;
+        }
+        decoder.readItemFields(item);
+        item.setChangeSeq(replay.seq);
+        items.put(id, item);
+        return;
+      }
+      case OP_DELETE:
+        items.put(id, null);
+        if (replay.deletedSeqs != null) {
+          replay.deletedSeqs.put(id, replay.seq);
+        }
+        return;
+      default:
+        throw new IllegalArgumentException("Bad op " + op);
+    }
+  }
+
+  private static ItemCodec.Decoder newDecoder(byte[] body) {
+    return new ItemCodec.Decoder(
+        ByteBuffer.wrap(body, HEADER_LENGTH, body.length - HEADER_LENGTH));
+  }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.View;
+import android.view.View.OnLongClickListener;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
+import android.widget.LinearLayout;
+import android.widget.LinearLayout.LayoutParams;
+import android.widget.ListView;
+import android.widget.TextView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Adapter giving the rows of the item list to a ListView. The ListView only asks for the rows that
+ * are on the screen, and hands back rows that scrolled off to be reused for other items, so the
+ * cost of showing the list depends on the height of the screen rather than the number of items.
+ *
+ * <p>When the items are set again, they are compared with the ones shown before by {@link
+ * ListDiff}, and only the rows that show an item whose content changed are bound again. If the
+ * rows didn't move, that is done in place, without laying out the list again.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ItemListAdapter extends BaseAdapter {
+  /**
+   * Interface for what a row shows and what happens when it is used.
+   */
+  interface Callback {
+    /**
+     * Sets the given checkbox to show the given item state in the given display mode. May be called
+     * with the state of a copy of an item, so it must only look at its arguments.
+     */
+    void setStateCheckBox(CheckBox stateCheckBox, ItemState state, DisplayMode displayMode);
+
+    /**
+     * Returns the text shown after the description, which is the category or the aisle, in the
+     * given display mode with the given store filter. May be called on any thread, so it must only
+     * look at its arguments.
+     */
+    String getSecondText(Item item, DisplayMode displayMode, String storeFilter);
+
+    void onStateCheckBoxChanged(CheckBox stateCheckBox, boolean isChecked, Item item);
+
+    void onEditItem(Item item);
+  }
+
+  private static final boolean DEBUG = false;
+
+  private final Context context;
+  private final ListView listView;
+  private final Callback callback;
+  /**
+   * The rows being shown. Only replaced on the main thread.
+   */
+  private volatile Rows rows = new Rows(new ArrayList<Item>(), new long[0], new RowContent[0]);
+
+  ItemListAdapter(Context context, ListView listView, Callback callback) {
+    this.context = context;
+    this.listView = listView;
+    this.callback = callback;
+  }
+
+  /**
+   * Class holding rows, which are never changed once made.
+   */
+  private static final class Rows {
+    final List<Item> items;
+    final long[] ids;
+    /**
+     * What each row shows, as of when the rows were made.
+     */
+    final RowContent[] contents;
+
+    Rows(List<Item> items, long[] ids, RowContent[] contents) {
+      this.items = items;
+      this.ids = ids;
+      this.contents = contents;
+    }
+  }
+
+  /**
+   * Class holding the rows to show and the operations that turn the rows that were being shown
+   * when it was prepared into them.
+   */
+  static final class Update {
+    private final Rows base;
+    private final Rows rows;
+    private final List<ListDiff.Op> ops;
+
+    private Update(Rows base, Rows rows, List<ListDiff.Op> ops) {
+      this.base = base;
+      this.rows = rows;
+      this.ops = ops;
+    }
+  }
+
+  /**
+   * Prepares to show the given items, comparing them with the items being shown. This is the slow
+   * part of showing the items, and can be called on any thread. The lists are copied, so they can
+   * be changed afterwards.
+   *
+   * @param snapshots copies of the items, taken when the items couldn't be changed, which are
+   *     what the rows show
+   * @param displayMode the display mode the items were found for
+   * @param storeFilter the store filter the items were found for
+   */
+  Update prepareItems(List<Item> newItems, List<Item> snapshots, DisplayMode displayMode,
+      String storeFilter) {
+    long startTimeDebug = System.currentTimeMillis();
+    long[] newIds = new long[newItems.size()];
+    RowContent[] newContents = new RowContent[newItems.size()];
+    for (int i = 0; i < newIds.length; i++) {
+      Item snapshot = snapshots.get(i);
+      newIds[i] = snapshot.getId();
+      newContents[i] = new RowContent(snapshot, displayMode, storeFilter);
+    }
+    Rows base = rows;
+    Rows newRows = new Rows(new ArrayList<>(newItems), newIds, newContents);
+    Update update = new Update(base, newRows, diff(base, newRows));
+    if (DEBUG) {
+      Log.d(ShoppingList.LOG_TAG, "ItemListAdapter.prepareItems found "
+          + ((update.ops != null) ? update.ops.size() + " operations" : "too many differences")
+          + " in " + (System.currentTimeMillis() - startTimeDebug) + " ms");
+    }
+    return update;
+  }
+
+  /**
+   * Shows prepared items. Called on the main thread.
+   */
+  void showItems(Update update) {
+    Rows oldRows = rows;
+    List<ListDiff.Op> ops = update.ops;
+    if (update.base != oldRows) {
+      // Other items were shown since the update was prepared.
+      ops = diff(oldRows, update.rows);
+    }
+    rows = update.rows;
+
+    if (ops != null && !hasMovedRows(ops)) {
+      // Bind the changed rows that are on the screen in place.
+      int firstVisiblePosition = listView.getFirstVisiblePosition();
+      for (ListDiff.Op op : ops) {
+        int index = op.newPosition - firstVisiblePosition;
+        if (index >= 0 && index < listView.getChildCount()) {
+          getView(op.newPosition, listView.getChildAt(index), listView);
+        }
+      }
+      return;
+    }
+
+    // Lay out the list again, keeping the first row on the screen where it was if it is still
+    // there. Rows whose content didn't change aren't bound again.
+    int firstVisiblePosition = listView.getFirstVisiblePosition();
+    View firstRow = listView.getChildAt(0);
+    notifyDataSetChanged();
+    if (firstRow != null && firstVisiblePosition < oldRows.ids.length) {
+      int newPosition = indexOf(update.rows.ids, oldRows.ids[firstVisiblePosition]);
+      if (newPosition != -1 && newPosition != firstVisiblePosition) {
+        listView.setSelectionFromTop(newPosition, firstRow.getTop());
+      }
+    }
+  }
+
+  private static List<ListDiff.Op> diff(Rows oldRows, final Rows newRows) {
+    final RowContent[] oldContents = oldRows.contents;
+    return ListDiff.diff(oldRows.ids, newRows.ids, new ListDiff.ContentComparator() {
+      @Override
+      public boolean isSameContent(int oldPosition, int newPosition) {
+        return oldContents[oldPosition].equals(newRows.contents[newPosition]);
+      }
+    });
+  }
+
+  /**
+   * Returns true if any row was removed, inserted, or moved.
+   */
+  private static boolean hasMovedRows(List<ListDiff.Op> ops) {
+    for (ListDiff.Op op : ops) {
+      if (op.type != ListDiff.OpType.CHANGE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int indexOf(long[] array, long value) {
+    for (int i = 0; i < array.length; i++) {
+      if (array[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int getCount() {
+    return rows.items.size();
+  }
+
+  @Override
+  public Item getItem(int position) {
+    return rows.items.get(position);
+  }
+
+  @Override
+  public long getItemId(int position) {
+    return rows.ids[position];
+  }
+
+  @Override
+  public boolean hasStableIds() {
+    return true;
+  }
+
+  @Override
+  public View getView(int position, View convertView, ViewGroup parent) {
+    RowViews rowViews = (convertView != null)
+        ? (RowViews) convertView.getTag()
+        : new RowViews();
+    Rows rows = this.rows;
+    rowViews.bind(rows.items.get(position), rows.contents[position]);
+    return rowViews.row;
+  }
+
+  /**
+   * Class holding what a row shows for an item.
+   */
+  private final class RowContent {
+    final String description;
+    final String second;
+    final ItemState state;
+    final DisplayMode displayMode;
+
+    RowContent(Item item, DisplayMode displayMode, String storeFilter) {
+      description = item.getDescription();
+      second = callback.getSecondText(item, displayMode, storeFilter);
+      state = item.getState();
+      this.displayMode = displayMode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof RowContent)) {
+        return false;
+      }
+      RowContent other = (RowContent) o;
+      return Objects.equals(description, other.description)
+          && Objects.equals(second, other.second)
+          && state == other.state
+          && displayMode == other.displayMode;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(description, second, state, displayMode);
+    }
+  }
+
+  /**
+   * Class holding the views of a row, which are created once and then bound to one item after
+   * another.
+   */
+  private final class RowViews {
+    final LinearLayout row;
+    final CheckBox stateCheckBox;
+    final TextView description;
+    final TextView second;
+    /**
+     * The item the row shows, or null while the row is being bound.
+     */
+    Item item;
+    /**
+     * What the row shows.
+     */
+    RowContent content;
+
+    RowViews() {
+      row = new LinearLayout(context);
+      Utils.setColors(row);
+
+      // Create a checkbox for the item state.
+      stateCheckBox = new CheckBox(context);
+      Utils.setColors(stateCheckBox);
+      stateCheckBox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+          // Ignore the change made by binding the row.
+          if (item != null && stateCheckBox.isEnabled()) {
+            callback.onStateCheckBoxChanged(stateCheckBox, isChecked, item);
+          }
+        }
+      });
+      row.addView(stateCheckBox, new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT, 0f));
+
+      // Create a TextView for the item description.
+      description = new TextView(context);
+      Utils.setColors(description);
+      description.setOnLongClickListener(new OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View view) {
+          callback.onEditItem(item);
+          return true;
+        }
+      });
+      row.addView(description, new LayoutParams(0, LayoutParams.WRAP_CONTENT, 1f));
+
+      // Create another TextView for the category or aisle, depending on the display mode.
+      second = new TextView(context);
+      Utils.setColors(second);
+      second.setGravity(Gravity.RIGHT);
+      second.setPadding(0, 0, 10, 0);
+      row.addView(
+          second, new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT, 0f));
+
+      row.setTag(this);
+    }
+
+    void bind(Item item, RowContent content) {
+      if (item == this.item && content.equals(this.content)) {
+        return;
+      }
+      this.item = null;
+      // The whole row shows the copy of the item that the update was prepared from.
+      callback.setStateCheckBox(stateCheckBox, content.state, content.displayMode);
+      description.setText(content.description);
+      second.setText(content.second);
+      this.item = item;
+      this.content = content;
+    }
+  }
+}
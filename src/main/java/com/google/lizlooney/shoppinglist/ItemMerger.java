@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class merging imported items into existing items. An imported item updates the existing item
+ * with the same description, ignoring case and spacing, or else is added as a new item.
+ *
+ * <p>The existing items are indexed by description in a hash map, so merging takes time in
+ * proportion to the number of imported items, and only the items that actually changed or were
+ * added need to be saved.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ItemMerger {
+  private final Map<String, Item> itemsByKey;
+  private final Set<Item> updatedItems = new LinkedHashSet<>();
+  private final Set<Item> addedItems = new LinkedHashSet<>();
+
+  /**
+   * Creates a merger into the given items, which it may change. If several items have the same
+   * description, imported items update the first of them.
+   */
+  ItemMerger(Collection<Item> existingItems) {
+    itemsByKey = new HashMap<>(existingItems.size() * 2);
+    for (Item item : existingItems) {
+      String key = getKey(item.getDescription());
+      if (!itemsByKey.containsKey(key)) {
+        itemsByKey.put(key, item);
+      }
+    }
+  }
+
+  /**
+   * Merges the given imported items. An imported item that matches an item added by an earlier
+   * imported item updates that item instead of adding another.
+   */
+  void merge(List<Item> importedItems) {
+    for (Item importedItem : importedItems) {
+      String key = getKey(importedItem.getDescription());
+      Item item = itemsByKey.get(key);
+      if (item == null) {
+        itemsByKey.put(key, importedItem);
+        addedItems.add(importedItem);
+      } else if (item.updateFrom(importedItem) && !addedItems.contains(item)) {
+        updatedItems.add(item);
+      }
+    }
+  }
+
+  /**
+   * Returns the existing items that were changed by the merge.
+   */
+  List<Item> getUpdatedItems() {
+    return new ArrayList<>(updatedItems);
+  }
+
+  /**
+   * Returns the imported items that did not match any existing item, which have no ids yet.
+   */
+  List<Item> getAddedItems() {
+    return new ArrayList<>(addedItems);
+  }
+
+  /**
+   * Returns the key that matches descriptions that differ only in case and spacing.
+   */
+  static String getKey(String description) {
+    StringBuilder sb = new StringBuilder(description.length());
+    boolean space = false;
+    for (int i = 0; i < description.length(); i++) {
+      char c = description.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = sb.length() > 0;
+      } else {
+        if (space) {
+          sb.append(' ');
+          space = false;
+        }
+        sb.append(c);
+      }
+    }
+    return sb.toString().toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Class encoding items to and decoding items from the strings stored in the shard files.
+ *
+ * <p>An item is stored as a flat JSON array: its change sequence number, its description, its
+ * category, a number holding its state and its auto-delete flag, its last purchased time, and a
+ * store and aisle for each store. The category, stores and aisles are written as their indexes in
+ * a {@link StringDictionary}, so each of them is stored once for all items instead of once per
+ * item. For example: {@code [1234,"milk",3,0,1500000000000,0,5,1,6]}. Arrays written before items
+ * had change sequence numbers start with the description.
+ *
+ * <p>Items saved before the dictionary existed are JSON objects, which are still decoded, with
+ * Gson, so that they don't need to be rewritten.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ItemShardCodec {
+  private static final ItemState[] STATES = ItemState.values();
+
+  private ItemShardCodec() {
+  }
+
+  /**
+   * Encodes the given item, adding any new strings to the given dictionary.
+   */
+  static String encode(Item item, StringDictionary dictionary) {
+    StringWriter stringWriter = new StringWriter();
+    JsonWriter writer = new JsonWriter(stringWriter);
+    try {
+      writer.beginArray();
+      writer.value(item.getChangeSeq());
+      writer.value(nonNull(item.getDescription()));
+      writer.value(dictionary.indexOf(nonNull(item.getCategory())));
+      writer.value((getStateOrdinal(item) << 1) | (item.getAutoDelete() ? 1 : 0));
+      writer.value(item.getLastPurchased());
+      for (String store : item.getStores()) {
+        writer.value(dictionary.indexOf(store));
+        writer.value(dictionary.indexOf(item.getAisle(store)));
+      }
+      writer.endArray();
+      writer.close();
+    } catch (IOException e) {
+      // A StringWriter doesn't throw IOException.
+      throw new IllegalStateException(e);
+    }
+    return stringWriter.toString();
+  }
+
+  // Items read with Gson, from JSON that has explicit nulls, have null fields. They are written as
+  // the defaults that Gson would read back if the item were saved as JSON.
+
+  private static String nonNull(String s) {
+    return (s != null) ? s : "";
+  }
+
+  private static int getStateOrdinal(Item item) {
+    return (item.getState() != null) ? item.getState().ordinal() : ItemState.NEED.ordinal();
+  }
+
+  /**
+   * Returns true if the given string was written by {@link #encode}, rather than being an item
+   * saved as a JSON object.
+   */
+  static boolean isEncoded(String s) {
+    return s.startsWith("[");
+  }
+
+  /**
+   * Decodes an item written by {@link #encode}.
+   *
+   * @throws IllegalArgumentException if the string is not an encoded item
+   */
+  static Item decode(String s, StringDictionary dictionary) {
+    JsonReader reader = new JsonReader(new StringReader(s));
+    try {
+      Item item = new Item();
+      reader.beginArray();
+      if (reader.peek() == JsonToken.NUMBER) {
+        item.setChangeSeq(reader.nextLong());
+      }
+      if (reader.peek() == JsonToken.NULL) {
+        // Written before null descriptions were written as empty strings.
+        reader.nextNull();
+      } else {
+        item.setDescription(reader.nextString());
+      }
+      item.setCategory(dictionary.get(reader.nextInt()));
+      int stateAndAutoDelete = reader.nextInt();
+      if ((stateAndAutoDelete >> 1) >= STATES.length) {
+        throw new IllegalArgumentException("Bad state " + stateAndAutoDelete);
+      }
+      item.setState(STATES[stateAndAutoDelete >> 1]);
+      item.setAutoDelete((stateAndAutoDelete & 1) != 0);
+      item.setLastPurchased(reader.nextLong());
+      while (reader.peek() != JsonToken.END_ARRAY) {
+        String store = dictionary.get(reader.nextInt());
+        item.addStoreAisle(store, dictionary.get(reader.nextInt()));
+      }
+      reader.endArray();
+      return item;
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      throw new IllegalArgumentException("Bad item " + s, e);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Class reading and writing a binary snapshot of all items.
+ *
+ * <p>The snapshot starts with a magic number, a format version, the change sequence number of the
+ * last change it includes, the number of items, and a CRC32 of the items. The items follow,
+ * encoded by {@link ItemCodec} with each item preceded by its id and its change sequence number.
+ * Reading maps the file into memory and decodes items straight from the mapped buffer, which is
+ * much faster than parsing JSON for each item. A snapshot whose items do not match the CRC is not
+ * used.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ItemSnapshot {
+  private static final int MAGIC = 0x534c5353; // "SLSS"
+  private static final byte VERSION = 4;
+  private static final int HEADER_LENGTH = 4 + 1 + 8 + 4 + 4;
+
+  private final long seq;
+  private final List<Item> items;
+
+  private ItemSnapshot(long seq, List<Item> items) {
+    this.seq = seq;
+    this.items = items;
+  }
+
+  /**
+   * Returns the change sequence number of the last change included in this snapshot.
+   */
+  long getSeq() {
+    return seq;
+  }
+
+  List<Item> getItems() {
+    return items;
+  }
+
+  /**
+   * Encodes a snapshot of the given items.
+   */
+  static byte[] encode(long seq, List<Item> items) {
+    ItemCodec.Encoder encoder = new ItemCodec.Encoder();
+    for (Item item : items) {
+      encoder.writeVarInt(item.getId());
+      encoder.writeVarLong(item.getChangeSeq());
+      encoder.writeItem(item);
+    }
+    byte[] encodedItems = encoder.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(encodedItems);
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + encodedItems.length);
+    buffer.putInt(MAGIC);
+    buffer.put(VERSION);
+    buffer.putLong(seq);
+    buffer.putInt(items.size());
+    buffer.putInt((int) crc.getValue());
+    buffer.put(encodedItems);
+    return buffer.array();
+  }
+
+  /**
+   * Writes the given encoded snapshot to the given file. The snapshot is written to a temporary
+   * file first and then renamed, so the file always holds either the old or the new snapshot.
+   */
+  static void write(File file, byte[] snapshot) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tempFile);
+    try {
+      out.write(snapshot);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tempFile.renameTo(file)) {
+      throw new IOException("Could not rename " + tempFile + " to " + file);
+    }
+  }
+
+  /**
+   * Reads the snapshot in the given file.
+   *
+   * @return the snapshot, or null if the file does not exist or does not hold a valid snapshot
+   */
+  static ItemSnapshot read(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return decode(buffer);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static ItemSnapshot decode(ByteBuffer buffer) {
+    try {
+      if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+        return null;
+      }
+      long seq = buffer.getLong();
+      int count = buffer.getInt();
+      int expectedCrc = buffer.getInt();
+      if (computeCrc(buffer.duplicate()) != expectedCrc) {
+        return null;
+      }
+      ItemCodec.Decoder decoder = new ItemCodec.Decoder(buffer);
+      List<Item> items = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        int id = decoder.readVarInt();
+        long changeSeq = decoder.readVarLong();
+        Item item = decoder.readItem();
+        item.setId(id);
+        item.setChangeSeq(changeSeq);
+        items.add(item);
+      }
+      return new ItemSnapshot(seq, items);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      // The snapshot is truncated or corrupt.
+      return null;
+    }
+  }
+
+  private static int computeCrc(ByteBuffer buffer) {
+    // CRC32.update(ByteBuffer) needs API level 26, so copy the bytes through a small array.
+    CRC32 crc = new CRC32();
+    byte[] chunk = new byte[8192];
+    while (buffer.hasRemaining()) {
+      int length = Math.min(chunk.length, buffer.remaining());
+      buffer.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+    return (int) crc.getValue();
+  }
+}
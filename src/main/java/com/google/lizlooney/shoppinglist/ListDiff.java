@@ -0,0 +1,230 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class finding the operations that turn one list of rows into another, so that only the rows that
+ * changed need to be shown again. Rows are identified by ids, which must be unique within a list.
+ *
+ * <p>The common start and end of the lists are skipped, and the rest is compared with Myers'
+ * O(ND) algorithm, which finds the fewest removes and inserts. A row that is removed and inserted
+ * elsewhere is reported as a move. A row that is in both lists but whose content differs is
+ * reported as a change.
+ *
+ * <p>This class doesn't use Android, so it can be run on any JVM.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class ListDiff {
+  /**
+   * The most removes and inserts that are looked for. Lists that differ by more than that are
+   * better shown again from scratch.
+   */
+  static final int MAX_EDIT_COUNT = 1000;
+
+  /**
+   * Interface for comparing the content of rows that have the same id.
+   */
+  interface ContentComparator {
+    boolean isSameContent(int oldPosition, int newPosition);
+  }
+
+  enum OpType {
+    REMOVE,
+    INSERT,
+    MOVE,
+    CHANGE,
+  }
+
+  /**
+   * An operation. A remove has only an old position, an insert and a change have only a new
+   * position, and a move has both.
+   */
+  static final class Op {
+    final OpType type;
+    final int oldPosition;
+    final int newPosition;
+
+    Op(OpType type, int oldPosition, int newPosition) {
+      this.type = type;
+      this.oldPosition = oldPosition;
+      this.newPosition = newPosition;
+    }
+
+    @Override
+    public String toString() {
+      return type + "(" + oldPosition + "," + newPosition + ")";
+    }
+  }
+
+  private ListDiff() {
+  }
+
+  /**
+   * Returns the operations that turn the old rows into the new rows: the removes, in descending
+   * old position, then the inserts, in ascending new position, then the moves, then the changes.
+   * A moved row whose content differs also has a change.
+   *
+   * @return the operations, or null if the lists differ by more than {@link #MAX_EDIT_COUNT}
+   *     removes and inserts
+   */
+  static List<Op> diff(long[] oldIds, long[] newIds, ContentComparator comparator) {
+    int start = 0;
+    while (start < oldIds.length && start < newIds.length && oldIds[start] == newIds[start]) {
+      start++;
+    }
+    int oldEnd = oldIds.length;
+    int newEnd = newIds.length;
+    while (oldEnd > start && newEnd > start && oldIds[oldEnd - 1] == newIds[newEnd - 1]) {
+      oldEnd--;
+      newEnd--;
+    }
+
+    List<Integer> removes = new ArrayList<>();
+    List<Integer> inserts = new ArrayList<>();
+    List<int[]> keeps = new ArrayList<>();
+    for (int i = 0; i < start; i++) {
+      keeps.add(new int[] {i, i});
+    }
+    if (!compare(oldIds, start, oldEnd, newIds, start, newEnd, removes, inserts, keeps)) {
+      return null;
+    }
+    for (int i = 0; i < oldIds.length - oldEnd; i++) {
+      keeps.add(new int[] {oldEnd + i, newEnd + i});
+    }
+
+    List<Op> ops = new ArrayList<>();
+    List<Op> moves = new ArrayList<>();
+    List<Op> changes = new ArrayList<>();
+    Map<Long, Integer> removedPositions = new HashMap<>();
+    for (int oldPosition : removes) {
+      removedPositions.put(oldIds[oldPosition], oldPosition);
+    }
+    Map<Long, Integer> movedPositions = new HashMap<>();
+    for (int newPosition : inserts) {
+      Integer oldPosition = removedPositions.get(newIds[newPosition]);
+      if (oldPosition != null) {
+        movedPositions.put(newIds[newPosition], oldPosition);
+        moves.add(new Op(OpType.MOVE, oldPosition, newPosition));
+        if (!comparator.isSameContent(oldPosition, newPosition)) {
+          changes.add(new Op(OpType.CHANGE, -1, newPosition));
+        }
+      }
+    }
+    // The removes were found from the end backwards.
+    for (int oldPosition : removes) {
+      if (!movedPositions.containsKey(oldIds[oldPosition])) {
+        ops.add(new Op(OpType.REMOVE, oldPosition, -1));
+      }
+    }
+    for (int i = inserts.size() - 1; i >= 0; i--) {
+      int newPosition = inserts.get(i);
+      if (!movedPositions.containsKey(newIds[newPosition])) {
+        ops.add(new Op(OpType.INSERT, -1, newPosition));
+      }
+    }
+    ops.addAll(moves);
+    for (int[] keep : keeps) {
+      if (!comparator.isSameContent(keep[0], keep[1])) {
+        changes.add(new Op(OpType.CHANGE, -1, keep[1]));
+      }
+    }
+    ops.addAll(changes);
+    return ops;
+  }
+
+  /**
+   * Finds the fewest removes and inserts that turn oldIds[oldStart, oldEnd) into
+   * newIds[newStart, newEnd), adding the positions of the removes and inserts, from the end
+   * backwards, and the pairs of positions of the rows that are kept.
+   *
+   * @return false if there are more than MAX_EDIT_COUNT removes and inserts
+   */
+  private static boolean compare(long[] oldIds, int oldStart, int oldEnd,
+      long[] newIds, int newStart, int newEnd,
+      List<Integer> removes, List<Integer> inserts, List<int[]> keeps) {
+    int n = oldEnd - oldStart;
+    int m = newEnd - newStart;
+    int maxD = Math.min(n + m, MAX_EDIT_COUNT);
+    // v[k + offset] is the furthest x reached on diagonal k, where k = x - y.
+    int offset = maxD + 1;
+    int[] v = new int[2 * maxD + 3];
+    // The trace holds v[-d - 1 .. d + 1] as it was before each step d, for backtracking.
+    List<int[]> trace = new ArrayList<>();
+    int finalD = -1;
+    for (int d = 0; d <= maxD && finalD == -1; d++) {
+      int[] snapshot = new int[2 * d + 3];
+      System.arraycopy(v, offset - d - 1, snapshot, 0, snapshot.length);
+      trace.add(snapshot);
+      for (int k = -d; k <= d; k += 2) {
+        int x = (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]))
+            ? v[offset + k + 1]
+            : v[offset + k - 1] + 1;
+        int y = x - k;
+        while (x < n && y < m && oldIds[oldStart + x] == newIds[newStart + y]) {
+          x++;
+          y++;
+        }
+        v[offset + k] = x;
+        if (x >= n && y >= m) {
+          finalD = d;
+          break;
+        }
+      }
+    }
+    if (finalD == -1) {
+      return false;
+    }
+
+    List<int[]> middleKeeps = new ArrayList<>();
+    int x = n;
+    int y = m;
+    for (int d = finalD; d >= 0; d--) {
+      int[] snapshot = trace.get(d);
+      int k = x - y;
+      // Index into the snapshot of step d, which starts at diagonal -d - 1.
+      int prevK = (k == -d || (k != d && snapshot[k - 1 + d + 1] < snapshot[k + 1 + d + 1]))
+          ? k + 1
+          : k - 1;
+      int prevX = snapshot[prevK + d + 1];
+      int prevY = prevX - prevK;
+      while (x > prevX && y > prevY) {
+        x--;
+        y--;
+        middleKeeps.add(new int[] {oldStart + x, newStart + y});
+      }
+      if (d > 0) {
+        if (x == prevX) {
+          inserts.add(newStart + y - 1);
+        } else {
+          removes.add(oldStart + x - 1);
+        }
+      }
+      x = prevX;
+      y = prevY;
+    }
+    for (int i = middleKeeps.size() - 1; i >= 0; i--) {
+      keeps.add(middleKeeps.get(i));
+    }
+    return true;
+  }
+}
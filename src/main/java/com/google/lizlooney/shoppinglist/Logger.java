@@ -0,0 +1,31 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+/**
+ * Interface for writing log messages from the classes that don't use Android, so that they can be
+ * run on any JVM.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+interface Logger {
+  void debug(String message);
+
+  void error(String message);
+
+  void error(String message, Throwable e);
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Class for finding the items whose descriptions contain some text, without looking at every item.
+ *
+ * <p>Each description is lowercased once, when the item is put in the index, and each run of three
+ * characters in it (a trigram) is given a sorted list of the ids of the items that contain it. A
+ * search only looks at the items in all the lists of the trigrams of the search text, and checks
+ * that those really contain the text. Text shorter than three characters is looked for in the
+ * lowercased descriptions of all the items.
+ *
+ * <p>A fuzzy search finds the descriptions that contain the text with a few typos. Each typo
+ * changes at most three of the trigrams of the text, so the candidates are the items that share
+ * enough of its trigrams, and they are checked by working out how many typos their best match has.
+ * When the text is short enough that the typos could change all of its trigrams, every item is
+ * checked. The items are returned best match first.
+ *
+ * <p>This class isn't thread safe. The shopping list uses it while holding the lock on its items.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class SearchIndex {
+  private static final int TRIGRAM_LENGTH = 3;
+
+  /**
+   * Class holding an item found by a fuzzy search, and how well it matched.
+   */
+  private static final class Match {
+    final Item item;
+    final int distance;
+    final int lengthDifference;
+    final String text;
+
+    Match(Item item, int distance, int lengthDifference, String text) {
+      this.item = item;
+      this.distance = distance;
+      this.lengthDifference = lengthDifference;
+      this.text = text;
+    }
+  }
+
+  /**
+   * Orders matches by the number of typos, then by how much of the description is left over, then
+   * alphabetically.
+   */
+  private static final Comparator<Match> BEST_MATCH_FIRST = new Comparator<Match>() {
+    @Override
+    public int compare(Match a, Match b) {
+      if (a.distance != b.distance) {
+        return Integer.compare(a.distance, b.distance);
+      }
+      if (a.lengthDifference != b.lengthDifference) {
+        return Integer.compare(a.lengthDifference, b.lengthDifference);
+      }
+      return a.text.compareTo(b.text);
+    }
+  };
+
+  /**
+   * Class holding an item and its lowercased description.
+   */
+  private static final class Entry {
+    final Item item;
+    final String text;
+
+    Entry(Item item, String text) {
+      this.item = item;
+      this.text = text;
+    }
+  }
+
+  /**
+   * Class holding a sorted list of item ids.
+   */
+  private static final class Postings {
+    int[] ids = new int[4];
+    int size;
+
+    void add(int id) {
+      int index = (size == 0 || ids[size - 1] < id)
+          ? size
+          : -Arrays.binarySearch(ids, 0, size, id) - 1;
+      if (index < 0) {
+        // Already there.
+        return;
+      }
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      System.arraycopy(ids, index, ids, index + 1, size - index);
+      ids[index] = id;
+      size++;
+    }
+
+    void remove(int id) {
+      int index = Arrays.binarySearch(ids, 0, size, id);
+      if (index >= 0) {
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        size--;
+      }
+    }
+
+    boolean contains(int id) {
+      return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+  }
+
+  private final Map<Integer, Entry> entries = new HashMap<>();
+  private final Map<Long, Postings> postingsByTrigram = new HashMap<>();
+
+  /**
+   * Returns the given text the way it is compared by searches.
+   */
+  static String normalize(String text) {
+    return (text != null) ? text.toLowerCase(Locale.getDefault()) : "";
+  }
+
+  void clear() {
+    entries.clear();
+    postingsByTrigram.clear();
+  }
+
+  /**
+   * Puts the given items in the index, replacing any with the same ids.
+   */
+  void putAll(Collection<Item> items) {
+    for (Item item : items) {
+      put(item);
+    }
+  }
+
+  /**
+   * Puts the given item in the index, replacing any with the same id. This must be called again
+   * after the item's description changes.
+   */
+  void put(Item item) {
+    String text = normalize(item.getDescription());
+    Entry old = entries.put(item.getId(), new Entry(item, text));
+    if (old != null) {
+      if (old.text.equals(text)) {
+        return;
+      }
+      for (long trigram : getTrigrams(old.text)) {
+        Postings postings = postingsByTrigram.get(trigram);
+        postings.remove(item.getId());
+        if (postings.size == 0) {
+          postingsByTrigram.remove(trigram);
+        }
+      }
+    }
+    for (long trigram : getTrigrams(text)) {
+      Postings postings = postingsByTrigram.get(trigram);
+      if (postings == null) {
+        postings = new Postings();
+        postingsByTrigram.put(trigram, postings);
+      }
+      postings.add(item.getId());
+    }
+  }
+
+  void remove(Item item) {
+    Entry old = entries.remove(item.getId());
+    if (old != null) {
+      for (long trigram : getTrigrams(old.text)) {
+        Postings postings = postingsByTrigram.get(trigram);
+        postings.remove(item.getId());
+        if (postings.size == 0) {
+          postingsByTrigram.remove(trigram);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the items whose descriptions contain the given text, ignoring case, in no particular
+   * order.
+   */
+  List<Item> search(String searchText) {
+    String text = normalize(searchText);
+    List<Item> items = new ArrayList<>();
+    if (text.length() < TRIGRAM_LENGTH) {
+      for (Entry entry : entries.values()) {
+        if (entry.text.contains(text)) {
+          items.add(entry.item);
+        }
+      }
+      return items;
+    }
+
+    long[] trigrams = getTrigrams(text);
+    Postings[] lists = new Postings[trigrams.length];
+    for (int i = 0; i < trigrams.length; i++) {
+      lists[i] = postingsByTrigram.get(trigrams[i]);
+      if (lists[i] == null) {
+        return items;
+      }
+    }
+    // Start with the shortest list, and look up its ids in the others.
+    Arrays.sort(lists, new Comparator<Postings>() {
+      @Override
+      public int compare(Postings a, Postings b) {
+        return Integer.compare(a.size, b.size);
+      }
+    });
+    Postings shortest = lists[0];
+    candidates:
+    for (int i = 0; i < shortest.size; i++) {
+      int id = shortest.ids[i];
+      for (int j = 1; j < lists.length; j++) {
+        if (!lists[j].contains(id)) {
+          continue candidates;
+        }
+      }
+      // The trigrams may be in the description without being next to each other.
+      Entry entry = entries.get(id);
+      if (entry.text.contains(text)) {
+        items.add(entry.item);
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Returns the items whose descriptions contain the given text with at most a few typos, ignoring
+   * case, best match first. A typo is a character that is added, left out, or changed. Text
+   * shorter than four characters must match exactly.
+   */
+  List<Item> fuzzySearch(String searchText) {
+    String text = normalize(searchText);
+    int maxDistance = getMaxTypos(text.length());
+    List<Match> matches = new ArrayList<>();
+    if (maxDistance == 0) {
+      for (Item item : search(text)) {
+        String itemText = entries.get(item.getId()).text;
+        matches.add(new Match(item, 0, itemText.length() - text.length(), itemText));
+      }
+    } else {
+      long[] trigrams = getTrigrams(text);
+      // An item with fewer trigrams can't match, because each typo changes at most three of them.
+      int minCount = trigrams.length - TRIGRAM_LENGTH * maxDistance;
+      if (minCount <= 0) {
+        // The typos could change every trigram of the text, so an item can match without sharing
+        // any of them.
+        for (Entry entry : entries.values()) {
+          addIfMatches(matches, entry, text, maxDistance);
+        }
+      } else {
+        addMatchesSharingTrigrams(matches, text, trigrams, minCount, maxDistance);
+      }
+    }
+
+    Collections.sort(matches, BEST_MATCH_FIRST);
+    List<Item> items = new ArrayList<>(matches.size());
+    for (Match match : matches) {
+      items.add(match.item);
+    }
+    return items;
+  }
+
+  /**
+   * Adds the matches among the items that have at least minCount of the given trigrams.
+   */
+  private void addMatchesSharingTrigrams(List<Match> matches, String text, long[] trigrams,
+      int minCount, int maxDistance) {
+    // Gather the ids of the items that have each trigram, so that after sorting, the number of
+    // times an id is there is the number of the trigrams that the item has.
+    Postings[] lists = new Postings[trigrams.length];
+    int total = 0;
+    for (int i = 0; i < trigrams.length; i++) {
+      lists[i] = postingsByTrigram.get(trigrams[i]);
+      if (lists[i] != null) {
+        total += lists[i].size;
+      }
+    }
+    int[] ids = new int[total];
+    total = 0;
+    for (Postings postings : lists) {
+      if (postings != null) {
+        System.arraycopy(postings.ids, 0, ids, total, postings.size);
+        total += postings.size;
+      }
+    }
+    Arrays.sort(ids);
+    for (int start = 0, end; start < ids.length; start = end) {
+      end = start + 1;
+      while (end < ids.length && ids[end] == ids[start]) {
+        end++;
+      }
+      if (end - start >= minCount) {
+        addIfMatches(matches, entries.get(ids[start]), text, maxDistance);
+      }
+    }
+  }
+
+  private static void addIfMatches(List<Match> matches, Entry entry, String text,
+      int maxDistance) {
+    int distance = getSubstringDistance(text, entry.text, maxDistance);
+    if (distance <= maxDistance) {
+      matches.add(new Match(entry.item, distance,
+          Math.abs(entry.text.length() - text.length()), entry.text));
+    }
+  }
+
+  /**
+   * Returns the most typos allowed in search text of the given length.
+   */
+  private static int getMaxTypos(int length) {
+    if (length < 4) {
+      return 0;
+    }
+    if (length < 8) {
+      return 1;
+    }
+    return 2;
+  }
+
+  /**
+   * Returns the fewest typos in any part of the given text that matches the given pattern, or
+   * maxDistance + 1 if there are more than maxDistance.
+   */
+  private static int getSubstringDistance(String pattern, String text, int maxDistance) {
+    int m = pattern.length();
+    // column[i] is the fewest typos matching the first i characters of the pattern to a part of
+    // the text that ends at the current character.
+    int[] column = new int[m + 1];
+    for (int i = 0; i <= m; i++) {
+      column[i] = i;
+    }
+    int best = column[m];
+    for (int j = 0; j < text.length() && best > 0; j++) {
+      char c = text.charAt(j);
+      // The match can start anywhere in the text.
+      int diagonal = 0;
+      for (int i = 1; i <= m; i++) {
+        int above = column[i];
+        column[i] = Math.min(Math.min(above, column[i - 1]) + 1,
+            diagonal + ((pattern.charAt(i - 1) == c) ? 0 : 1));
+        diagonal = above;
+      }
+      best = Math.min(best, column[m]);
+    }
+    return Math.min(best, maxDistance + 1);
+  }
+
+  /**
+   * Returns the distinct trigrams of the given text, each packed into a long.
+   */
+  private static long[] getTrigrams(String text) {
+    int count = text.length() - TRIGRAM_LENGTH + 1;
+    if (count <= 0) {
+      return new long[0];
+    }
+    long[] trigrams = new long[count];
+    for (int i = 0; i < count; i++) {
+      trigrams[i] = ((long) text.charAt(i) << 32)
+          | ((long) text.charAt(i + 1) << 16)
+          | text.charAt(i + 2);
+    }
+    Arrays.sort(trigrams);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+        trigrams[distinct++] = trigrams[i];
+      }
+    }
+    return Arrays.copyOf(trigrams, distinct);
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Storage backend that keeps each store in the app's private SharedPreferences file of the same
+ * name.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class SharedPreferencesBackend implements StorageBackend {
+  private final Context context;
+  private final Map<String, Store> stores = new HashMap<>();
+
+  SharedPreferencesBackend(Context context) {
+    this.context = context;
+  }
+
+  @Override
+  public synchronized Store getStore(String name) {
+    Store store = stores.get(name);
+    if (store == null) {
+      final SharedPreferences prefs = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+      store = new Store() {
+        @Override
+        public int getInt(String key, int defaultValue) {
+          return prefs.getInt(key, defaultValue);
+        }
+
+        @Override
+        public long getLong(String key, long defaultValue) {
+          return prefs.getLong(key, defaultValue);
+        }
+
+        @Override
+        public String getString(String key, String defaultValue) {
+          return prefs.getString(key, defaultValue);
+        }
+
+        @Override
+        public Editor edit() {
+          return new PreferencesEditor(prefs.edit());
+        }
+      };
+      stores.put(name, store);
+    }
+    return store;
+  }
+
+  @Override
+  public File getFilesDir() {
+    return context.getFilesDir();
+  }
+
+  private static final class PreferencesEditor implements Editor {
+    private final SharedPreferences.Editor editor;
+
+    PreferencesEditor(SharedPreferences.Editor editor) {
+      this.editor = editor;
+    }
+
+    @Override
+    public Editor putInt(String key, int value) {
+      editor.putInt(key, value);
+      return this;
+    }
+
+    @Override
+    public Editor putLong(String key, long value) {
+      editor.putLong(key, value);
+      return this;
+    }
+
+    @Override
+    public Editor putString(String key, String value) {
+      editor.putString(key, value);
+      return this;
+    }
+
+    @Override
+    public Editor remove(String key) {
+      editor.remove(key);
+      return this;
+    }
+
+    @Override
+    public Editor clear() {
+      editor.clear();
+      return this;
+    }
+
+    @Override
+    public boolean commit() {
+      return editor.commit();
+    }
+  }
+}
@@ -27,13 +27,11 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
-import android.view.Gravity;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MenuItem.OnMenuItemClickListener;
 import android.view.View;
 import android.view.View.OnClickListener;
-import android.view.View.OnLongClickListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
@@ -43,22 +41,27 @@ import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.LinearLayout;
-import android.widget.LinearLayout.LayoutParams;
+import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.TextView;
 import com.google.gson.Gson;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import com.google.gson.JsonParseException;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Activity class for the shopping list.
@@ -72,20 +75,54 @@ public final class ShoppingList extends Activity {
 
   private static final int EDIT_ITEM_REQUEST_CODE = 1;
 
+  /**
+   * The time to wait after the search text changes before searching, so that the items are not
+   * searched again for each letter typed.
+   */
+  private static final long SEARCH_DELAY_MS = 150;
+
   private static final String IMPORT_FILE_NAME = "ShoppingList.in";
   private static final String EXPORT_FILE_NAME = "ShoppingList.out";
+  private static final String EXPORT_CHANGES_FILE_NAME_PREFIX = "ShoppingList.";
+  private static final String EXPORT_CHANGES_FILE_NAME_SUFFIX = ".delta";
+  /**
+   * The directory that export files can be put in to have them merged into the list.
+   */
+  private static final String INBOX_DIR_NAME = "ShoppingList.inbox";
+  private static final int IMPORT_BUFFER_SIZE = 64 * 1024;
 
   final static String STORE_FILTER_ALL = "<All Stores>";
   final static String STORE_FILTER_MISSING = "<Missing Store>";
 
   private final Gson gson = new Gson();
 
-  private Storage storage = new Storage(gson);
+  private Storage storage = new Storage(gson, new AndroidLogger());
   /**
    * All the items, not just the ones currently displayed.
    */
   private final List<Item> allItems = new ArrayList<>();
   private final Object allItemsLock = new Object();
+  /**
+   * Index of the descriptions of all the items, for searching. Guarded by allItemsLock.
+   */
+  private final SearchIndex searchIndex = new SearchIndex();
+  /**
+   * Whether all the items have been put in the search index. The index is built by the first
+   * search, on the display thread, rather than when the items are loaded. Guarded by allItemsLock.
+   */
+  private boolean searchIndexBuilt;
+  /**
+   * The number of imports that are replacing all the items in storage. Until an import replaces the
+   * items in memory too, the items on the list are about to be discarded, and their ids may already
+   * belong to the imported items. So while this is not 0, edits to the list are dropped and merges
+   * wait. Guarded by allItemsLock.
+   */
+  private int replacementsInProgress;
+  /**
+   * The change sequence number of the last change to the items on the list, taken when the first
+   * of the imports in progress started replacing them. Guarded by allItemsLock.
+   */
+  private long seqBeforeReplacement;
   /**
    * All the categories that are used in items.
    */
@@ -123,10 +160,25 @@ public final class ShoppingList extends Activity {
   private ArrayAdapter<String> storeFilterAdapter;
   private LinearLayout searchArea;
   private EditText searchBox;
+  private CheckBox searchFuzzyCheckBox;
   private TextView secondHeading;
-  private LinearLayout itemsContainer;
+  private ListView itemsContainer;
+  private TextView emptyMessage;
+  private ItemListAdapter itemListAdapter;
 
   private Item itemBeingEdited;
+  private ImportInbox importInbox;
+
+  /**
+   * The thread that finds the items to display, so that the main thread isn't held up by
+   * searching and sorting.
+   */
+  private final ScheduledExecutorService displayExecutor =
+      Executors.newSingleThreadScheduledExecutor();
+  /**
+   * Incremented by each update of the display, so that older updates can be abandoned.
+   */
+  private final AtomicInteger displayGeneration = new AtomicInteger();
 
   /** Called when the activity is first created. */
   @Override
@@ -134,7 +186,7 @@ public final class ShoppingList extends Activity {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.shopping_list);
 
-    storage.init(this);
+    storage.init(new SharedPreferencesBackend(this));
 
     displayModeTextView = findViewById(R.id.displayMode);
     displayModeTextView.setOnClickListener(new OnClickListener() {
@@ -160,6 +212,15 @@ public final class ShoppingList extends Activity {
     searchBox.addTextChangedListener(new TextChangeAdapter() {
       @Override
       public void textChanged(String s) {
+        // Wait for a pause in the typing.
+        updateDisplay(SEARCH_DELAY_MS);
+      }
+    });
+    searchFuzzyCheckBox = findViewById(R.id.searchFuzzy);
+    Utils.setColors(searchFuzzyCheckBox);
+    searchFuzzyCheckBox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+      @Override
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
         updateDisplay();
       }
     });
@@ -184,6 +245,42 @@ public final class ShoppingList extends Activity {
     secondHeading.setPaintFlags(secondHeading.getPaintFlags() | Paint.UNDERLINE_TEXT_FLAG);
 
     itemsContainer = findViewById(R.id.items);
+    emptyMessage = findViewById(R.id.emptyMessage);
+    Utils.setColors(emptyMessage);
+    itemsContainer.setEmptyView(emptyMessage);
+    itemListAdapter = new ItemListAdapter(this, itemsContainer, new ItemListAdapter.Callback() {
+      @Override
+      public void setStateCheckBox(CheckBox stateCheckBox, ItemState state,
+          DisplayMode displayMode) {
+        ShoppingList.setStateCheckBox(stateCheckBox, state, displayMode);
+      }
+
+      @Override
+      public String getSecondText(Item item, DisplayMode displayMode, String storeFilter) {
+        switch (displayMode) {
+          default:
+          case PLANNING:
+            return item.getCategory();
+          case SHOPPING:
+            if (storeFilter.equals(STORE_FILTER_ALL) ||
+                storeFilter.equals(STORE_FILTER_MISSING)) {
+              return "";
+            }
+            return item.getAisle(storeFilter);
+        }
+      }
+
+      @Override
+      public void onStateCheckBoxChanged(CheckBox stateCheckBox, boolean isChecked, Item item) {
+        stateCheckBoxChanged(stateCheckBox, isChecked, item);
+      }
+
+      @Override
+      public void onEditItem(Item item) {
+        editItem(item);
+      }
+    });
+    itemsContainer.setAdapter(itemListAdapter);
 
     loadFromStorage();
 
@@ -193,6 +290,40 @@ public final class ShoppingList extends Activity {
 
     updateComparator();
     updateDisplay();
+
+    importInbox = new ImportInbox(
+        new File(Environment.getExternalStorageDirectory().getPath(), INBOX_DIR_NAME),
+        storage,
+        new ImportInbox.Listener() {
+          @Override
+          public void onItemsImported(List<Item> items) {
+            mergeItems(items);
+          }
+        });
+    importInbox.start();
+  }
+
+  @Override
+  protected void onDestroy() {
+    importInbox.stop();
+    displayExecutor.shutdownNow();
+    // The activity that replaces this one, after a rotation for example, has its own storage, which
+    // must not find this one still writing.
+    storage.close();
+    super.onDestroy();
+  }
+
+  @Override
+  protected void onPause() {
+    super.onPause();
+    // Make sure that pending changes are written before the process can be killed.
+    storage.flush();
+    synchronized (allItemsLock) {
+      // A snapshot of the items that an import is replacing would hide the imported items.
+      if (replacementsInProgress == 0) {
+        storage.saveSnapshot(allItems);
+      }
+    }
   }
 
   private void loadFromStorage() {
@@ -314,6 +445,17 @@ public final class ShoppingList extends Activity {
                     return true;
                   }
                 });
+
+        // Merge Items
+        menu.add(getString(R.string.MergeItems))
+            .setOnMenuItemClickListener(
+                new OnMenuItemClickListener() {
+                  @Override
+                  public boolean onMenuItemClick(MenuItem menuItem) {
+                    mergeFromFile();
+                    return true;
+                  }
+                });
       }
 
       // Export Items
@@ -322,10 +464,23 @@ public final class ShoppingList extends Activity {
               new OnMenuItemClickListener() {
                 @Override
                 public boolean onMenuItemClick(MenuItem menuItem) {
-                  exportToFile();
+                  chooseExportFormat();
                   return true;
                 }
               });
+
+      // Export Changes
+      if (storage.loadExportSeq() != 0) {
+        menu.add(getString(R.string.ExportChanges))
+            .setOnMenuItemClickListener(
+                new OnMenuItemClickListener() {
+                  @Override
+                  public boolean onMenuItemClick(MenuItem menuItem) {
+                    exportChangesToFile();
+                    return true;
+                  }
+                });
+      }
     }
 
     return true;
@@ -370,186 +525,247 @@ public final class ShoppingList extends Activity {
   }
 
   private void updateDisplay() {
-    synchronized (allItemsLock) {
-      if (itemsContainer.getWidth() == 0) {
-        new Handler().post(new Runnable() {
-          @Override
-          public void run() {
-            updateDisplay();
-          }
-        });
-        return;
-      }
-      long startTimeDebug = System.currentTimeMillis();
-
-      itemsContainer.removeAllViews();
-      displayedItems.clear();
-      Stores neededStores = new Stores();
+    updateDisplay(0);
+  }
 
-      String searchText;
-      if (searchArea.getVisibility() == View.VISIBLE) {
-        searchText = searchBox.getText().toString().trim().toLowerCase(Locale.getDefault());
-        if (searchText.length() == 0) {
-          searchText = null;
+  /**
+   * Finds the items to display on the display thread, after the given delay, and then displays
+   * them on the main thread. An update that hasn't been displayed yet is abandoned when another
+   * update starts.
+   */
+  private void updateDisplay(final long delayMs) {
+    if (itemsContainer.getWidth() == 0) {
+      new Handler().post(new Runnable() {
+        @Override
+        public void run() {
+          updateDisplay(delayMs);
         }
-      } else {
+      });
+      return;
+    }
+
+    String searchText;
+    if (searchArea.getVisibility() == View.VISIBLE) {
+      searchText = SearchIndex.normalize(searchBox.getText().toString().trim());
+      if (searchText.length() == 0) {
         searchText = null;
       }
+    } else {
+      searchText = null;
+    }
+    final DisplayQuery query = new DisplayQuery(displayGeneration.incrementAndGet(),
+        displayMode, storeFilter, comparator, searchText,
+        searchText != null && searchFuzzyCheckBox.isChecked());
 
-      displayModeTextView.setText(DisplayMode.toString(this, displayMode));
-
-      switch (displayMode) {
-        default:
-        case PLANNING:
-          secondHeading.setText(R.string.CategoryHeading);
-          for (Item item : allItems) {
-            if (itemShouldBeShown(item, searchText)) {
-              displayedItems.add(item);
-            }
-          }
-          break;
+    displayModeTextView.setText(DisplayModes.toString(this, displayMode));
+    switch (displayMode) {
+      default:
+      case PLANNING:
+        secondHeading.setText(R.string.CategoryHeading);
+        break;
+      case SHOPPING:
+        secondHeading.setText(R.string.AisleHeading);
+        break;
+    }
 
-        case SHOPPING:
-          secondHeading.setText(R.string.AisleHeading);
-          for (Item item : allItems) {
-            if (item.getState() == ItemState.DONT_NEED) {
-              continue;
-            }
-            neededStores.add(item);
-            if (itemShouldBeShown(item, searchText)) {
-              displayedItems.add(item);
-            }
-          }
-          break;
+    displayExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        findItemsToDisplay(query);
       }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
 
-      Collections.sort(displayedItems, comparator);
+  /**
+   * Class holding what an update of the display needs to know, so that it doesn't look at fields
+   * that the main thread may be changing.
+   */
+  private static final class DisplayQuery {
+    final int generation;
+    final DisplayMode displayMode;
+    final String storeFilter;
+    final Comparator<Item> comparator;
+    final String searchText;
+    /**
+     * Whether the search text may have typos, in which case the items are shown best match first
+     * rather than sorted by the comparator.
+     */
+    final boolean fuzzy;
+    final long startTimeDebug = System.currentTimeMillis();
+
+    DisplayQuery(int generation, DisplayMode displayMode, String storeFilter,
+        Comparator<Item> comparator, String searchText, boolean fuzzy) {
+      this.generation = generation;
+      this.displayMode = displayMode;
+      this.storeFilter = storeFilter;
+      this.comparator = comparator;
+      this.searchText = searchText;
+      this.fuzzy = fuzzy;
+    }
+  }
 
-      for (final Item item : displayedItems) {
-        LinearLayout row = new LinearLayout(this);
-        Utils.setColors(row);
-
-        // Create a checkbox for the item state.
-        final CheckBox stateCheckBox = new CheckBox(this);
-        Utils.setColors(stateCheckBox);
-        setStateCheckBox(stateCheckBox, item);
-        stateCheckBox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
-          @Override
-          public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-            if (stateCheckBox.isEnabled()) {
-              stateCheckBoxChanged(stateCheckBox, isChecked, item);
-            }
-          }
-        });
-        row.addView(stateCheckBox, new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT, 0f));
+  /**
+   * Class holding an item to display and a copy of it taken while holding allItemsLock. The items
+   * are sorted by, and their rows show, the copies, since the items may be changed meanwhile.
+   */
+  private static final class DisplayEntry {
+    final Item item;
+    final Item snapshot;
 
-        // Create a TextView for the item description.
-        TextView description = new TextView(this);
-        Utils.setColors(description);
-        description.setText(item.getDescription());
-        description.setOnLongClickListener(new OnLongClickListener() {
-          @Override
-          public boolean onLongClick(View view) {
-            editItem(item);
-            return true;
+    DisplayEntry(Item item) {
+      this.item = item;
+      snapshot = item.copy();
+    }
+  }
+
+  private boolean isAbandoned(DisplayQuery query) {
+    return query.generation != displayGeneration.get();
+  }
+
+  /**
+   * Finds the items to display. Runs on the display thread.
+   */
+  private void findItemsToDisplay(final DisplayQuery query) {
+    if (isAbandoned(query)) {
+      return;
+    }
+    List<DisplayEntry> entries = new ArrayList<>();
+    final Stores neededStores = new Stores();
+    final int allItemsCount;
+    synchronized (allItemsLock) {
+      allItemsCount = allItems.size();
+      if (query.displayMode == DisplayMode.SHOPPING) {
+        for (Item item : allItems) {
+          if (item.getState() != ItemState.DONT_NEED) {
+            neededStores.add(item);
           }
-        });
-        row.addView(description, new LayoutParams(0, LayoutParams.WRAP_CONTENT, 1f));
+        }
+      }
+      if (query.searchText != null && !searchIndexBuilt) {
+        searchIndex.putAll(allItems);
+        searchIndexBuilt = true;
+      }
+      // With search text, only the items that contain it are looked at.
+      List<Item> candidates;
+      if (query.searchText == null) {
+        candidates = allItems;
+      } else if (query.fuzzy) {
+        candidates = searchIndex.fuzzySearch(query.searchText);
+      } else {
+        candidates = searchIndex.search(query.searchText);
+      }
+      for (int i = 0; i < candidates.size(); i++) {
+        if (i % 1024 == 0 && isAbandoned(query)) {
+          return;
+        }
+        Item item = candidates.get(i);
+        if (itemShouldBeShown(item, query)) {
+          entries.add(new DisplayEntry(item));
+        }
+      }
+    }
+    if (isAbandoned(query)) {
+      return;
+    }
 
-        // Create another TextView for the category or aisle, depending on the display mode.
-        TextView second = new TextView(this);
-        Utils.setColors(second);
-        String text;
-        switch (displayMode) {
-          default:
-          case PLANNING:
-            text = item.getCategory();
-            break;
-          case SHOPPING:
-            if (storeFilter.equals(STORE_FILTER_ALL) ||
-                storeFilter.equals(STORE_FILTER_MISSING)) {
-              text = "";
-            } else {
-              text = item.getAisle(storeFilter);
-            }
-            break;
+    // A fuzzy search has already put the best matches first.
+    if (!query.fuzzy) {
+      final Comparator<Item> comparator = query.comparator;
+      Collections.sort(entries, new Comparator<DisplayEntry>() {
+        @Override
+        public int compare(DisplayEntry a, DisplayEntry b) {
+          return comparator.compare(a.snapshot, b.snapshot);
         }
-        second.setText(text);
-        second.setGravity(Gravity.RIGHT);
-        second.setPadding(0, 0, 10, 0);
-        row.addView(
-            second, new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT, 0f));
-
-        // Add the row to the itemsContainer.
-        itemsContainer.addView(row);
-      }
-
-      if (displayedItems.size() == 0) {
-        TextView message = new TextView(this);
-        Utils.setColors(message);
-        message.setSingleLine(false);
-        message.setTextSize(30);
-        message.setGravity(Gravity.CENTER);
-        String text;
-        switch (displayMode) {
-          default:
-          case PLANNING:
-            text = getString(R.string.NoItems);
-            break;
-          case SHOPPING:
-            if (storeFilter.equals(STORE_FILTER_ALL)) {
-              text = getString(R.string.NoItemsNeeded);
-            } else if (storeFilter.equals(STORE_FILTER_MISSING)) {
-              text = getString(R.string.NoItemsNeeded);
-            } else {
-              text = getString(R.string.NoItemsNeededAtStore, storeFilter);
-            }
-            break;
+      });
+    }
+    if (isAbandoned(query)) {
+      return;
+    }
+
+    final List<Item> items = new ArrayList<>(entries.size());
+    List<Item> snapshots = new ArrayList<>(entries.size());
+    for (DisplayEntry entry : entries) {
+      items.add(entry.item);
+      snapshots.add(entry.snapshot);
+    }
+    final ItemListAdapter.Update update = itemListAdapter.prepareItems(items, snapshots,
+        query.displayMode, query.storeFilter);
+    new Handler(Looper.getMainLooper()).post(new Runnable() {
+      @Override
+      public void run() {
+        if (!isAbandoned(query)) {
+          displayItems(query, items, update, neededStores, allItemsCount);
         }
-        message.setText(text);
-        itemsContainer.addView(message, new LayoutParams(LayoutParams.FILL_PARENT, LayoutParams.WRAP_CONTENT, 0f));
       }
+    });
+  }
 
-      itemsContainer.requestLayout();
+  /**
+   * Displays the items found by {@link #findItemsToDisplay}. Runs on the main thread.
+   */
+  private void displayItems(DisplayQuery query, List<Item> items,
+      ItemListAdapter.Update update, Stores neededStores, int allItemsCount) {
+    displayedItems.clear();
+    displayedItems.addAll(items);
 
-      Utils.updateSpinner(
-          storeFilterSpinner,
-          storeFilterAdapter,
-          (displayMode == DisplayMode.PLANNING)
-              ? allStores.getStoresForStoreFilter()
-              : neededStores.getStoresForStoreFilter(),
-          storeFilter);
-      setSpinnersDropDownVerticalOffset();
+    // The list only binds the rows that are on the screen, and only those that changed.
+    itemListAdapter.showItems(update);
 
-      if (DEBUG) {
-        long elapsedTimeDebug = System.currentTimeMillis() - startTimeDebug;
-        Log.d(LOG_TAG, "storeFilter is \"" + storeFilter + "\"");
-        Log.d(
-            LOG_TAG,
-            "displaying "
-                + displayedItems.size()
-                + " (of "
-                + allItems.size()
-                + ") took "
-                + elapsedTimeDebug
-                + " ms");
+    if (displayedItems.size() == 0) {
+      String text;
+      switch (query.displayMode) {
+        default:
+        case PLANNING:
+          text = getString(R.string.NoItems);
+          break;
+        case SHOPPING:
+          if (query.storeFilter.equals(STORE_FILTER_ALL)) {
+            text = getString(R.string.NoItemsNeeded);
+          } else if (query.storeFilter.equals(STORE_FILTER_MISSING)) {
+            text = getString(R.string.NoItemsNeeded);
+          } else {
+            text = getString(R.string.NoItemsNeededAtStore, query.storeFilter);
+          }
+          break;
       }
+      emptyMessage.setText(text);
+    }
+
+    Utils.updateSpinner(
+        storeFilterSpinner,
+        storeFilterAdapter,
+        (query.displayMode == DisplayMode.PLANNING)
+            ? allStores.getStoresForStoreFilter()
+            : neededStores.getStoresForStoreFilter(),
+        query.storeFilter);
+    setSpinnersDropDownVerticalOffset();
+
+    if (DEBUG) {
+      long elapsedTimeDebug = System.currentTimeMillis() - query.startTimeDebug;
+      Log.d(LOG_TAG, "storeFilter is \"" + query.storeFilter + "\"");
+      Log.d(
+          LOG_TAG,
+          "displaying "
+              + displayedItems.size()
+              + " (of "
+              + allItemsCount
+              + ") took "
+              + elapsedTimeDebug
+              + " ms");
     }
   }
 
-  private boolean itemShouldBeShown(Item item, String searchText) {
-    if (storeFilter.equals(STORE_FILTER_MISSING)) {
+  private boolean itemShouldBeShown(Item item, DisplayQuery query) {
+    if (query.displayMode == DisplayMode.SHOPPING && item.getState() == ItemState.DONT_NEED) {
+      return false;
+    }
+    if (query.storeFilter.equals(STORE_FILTER_MISSING)) {
       // Only show items that are missing a store.
       if (!item.isMissingStore()) {
         return false;
       }
     }
 
-    // Eliminate items because of search text.
-    if (searchText != null && !item.getDescription().toLowerCase(Locale.getDefault()).contains(searchText)) {
-      return false;
-    }
-
     return true;
   }
 
@@ -566,10 +782,11 @@ public final class ShoppingList extends Activity {
     Utils.hideSoftKeyboard(searchBox);
   }
 
-  private void setStateCheckBox(CheckBox stateCheckBox, Item item) {
+  private static void setStateCheckBox(CheckBox stateCheckBox, ItemState state,
+      DisplayMode displayMode) {
     switch (displayMode) {
       case PLANNING:
-        switch (item.getState()) {
+        switch (state) {
           case DONT_NEED:
             stateCheckBox.setEnabled(true);
             stateCheckBox.setChecked(false);
@@ -586,7 +803,7 @@ public final class ShoppingList extends Activity {
         }
         break;
       case SHOPPING:
-        switch (item.getState()) {
+        switch (state) {
           case DONT_NEED:
             // Item should not even be displayed in SHOPPING mode.
             stateCheckBox.setEnabled(false);
@@ -606,15 +823,21 @@ public final class ShoppingList extends Activity {
   }
 
   private void stateCheckBoxChanged(CheckBox stateCheckBox, boolean isChecked, Item item) {
-    switch (displayMode) {
-      case PLANNING:
-        item.setState(isChecked ? ItemState.NEED : ItemState.DONT_NEED);
-        break;
-      case SHOPPING:
-        item.setState(isChecked ? ItemState.IN_SHOPPING_CART : ItemState.NEED);
-        break;
+    synchronized (allItemsLock) {
+      if (replacementsInProgress > 0 || !allItems.contains(item)) {
+        // The list is being or was replaced by an import since the item was shown.
+        return;
+      }
+      switch (displayMode) {
+        case PLANNING:
+          item.setState(isChecked ? ItemState.NEED : ItemState.DONT_NEED);
+          break;
+        case SHOPPING:
+          item.setState(isChecked ? ItemState.IN_SHOPPING_CART : ItemState.NEED);
+          break;
+      }
+      storage.saveItem(item);
     }
-    storage.saveItem(item);
   }
 
   private void editItem(Item item) {
@@ -625,7 +848,7 @@ public final class ShoppingList extends Activity {
     activityIntent.putExtra(EditItem.ALL_AISLES, allAisles.getAislesArray());
 
     if (item != null) {
-      item.exportToIntent(activityIntent);
+      EditItem.putItemExtras(activityIntent, item);
     } else {
       if (searchArea.getVisibility() == View.VISIBLE) {
         String descriptionString = searchBox.getText().toString().trim();
@@ -648,30 +871,46 @@ public final class ShoppingList extends Activity {
       if (resultCode == Activity.RESULT_OK) {
         if (data != null) {
           Item item;
-          if (itemBeingEdited != null) {
-            // Edit an existing item.
-            item = itemBeingEdited;
-            itemBeingEdited = null;
-          } else {
-            // Add an item.
-            item = new Item();
-            item.setId(storage.getUnusedItemId());
-            synchronized (allItemsLock) {
+          // The item is changed and saved while holding the lock, so that an import can't replace
+          // the list in between.
+          synchronized (allItemsLock) {
+            if (replacementsInProgress > 0) {
+              // The list is being replaced by an import, which the change would be lost in.
+              itemBeingEdited = null;
+              return;
+            }
+            if (itemBeingEdited != null) {
+              // Edit an existing item.
+              item = itemBeingEdited;
+              itemBeingEdited = null;
+              if (!allItems.contains(item)) {
+                // The list was replaced by an import while the item was being edited.
+                return;
+              }
+            } else {
+              // Add an item.
+              item = new Item();
+              item.setId(storage.getUnusedItemId());
               allItems.add(item);
             }
+            EditItem.getItemExtras(data, item);
+            searchIndex.put(item);
+            storage.saveItem(item);
           }
-          item.importFromIntent(data);
           allCategories.add(item);
           allStores.add(item);
           allAisles.add(item);
-          storage.saveItem(item);
         } else {
           // Delete the item.
           if (itemBeingEdited != null) {
             synchronized (allItemsLock) {
-              allItems.remove(itemBeingEdited);
+              // Unless the list is being or was replaced by an import while the item was being
+              // edited.
+              if (replacementsInProgress == 0 && allItems.remove(itemBeingEdited)) {
+                searchIndex.remove(itemBeingEdited);
+                storage.deleteItem(itemBeingEdited);
+              }
             }
-            storage.deleteItem(itemBeingEdited);
             itemBeingEdited = null;
           }
         }
@@ -697,86 +936,109 @@ public final class ShoppingList extends Activity {
 
   private void clearCheckedItems() {
     long timestamp = System.currentTimeMillis();
-    for (final Item item : displayedItems) {
-      if (item.getState() == ItemState.IN_SHOPPING_CART) {
-        if (item.getAutoDelete()) {
-          synchronized (allItemsLock) {
-            allItems.remove(item);
+    List<Item> itemsToSave = new ArrayList<>();
+    List<Item> itemsToDelete = new ArrayList<>();
+    synchronized (allItemsLock) {
+      // The displayed items are not changed if the list is being or was replaced by an import
+      // since they were shown.
+      if (replacementsInProgress > 0) {
+        return;
+      }
+      Set<Item> currentItems = new HashSet<>(allItems);
+      for (final Item item : displayedItems) {
+        if (item.getState() == ItemState.IN_SHOPPING_CART && currentItems.contains(item)) {
+          if (item.getAutoDelete()) {
+            itemsToDelete.add(item);
+          } else {
+            item.setState(ItemState.DONT_NEED);
+            item.setLastPurchased(timestamp);
+            itemsToSave.add(item);
           }
-          storage.deleteItem(item);
-        } else {
-          item.setState(ItemState.DONT_NEED);
-          item.setLastPurchased(timestamp);
-          storage.saveItem(item);
         }
       }
+      allItems.removeAll(new HashSet<>(itemsToDelete));
+      for (Item item : itemsToDelete) {
+        searchIndex.remove(item);
+      }
+      storage.updateItems(itemsToSave, itemsToDelete);
     }
     updateDisplay();
   }
 
   private void importFromFile() {
-    synchronized (allItemsLock) {
-      allItems.clear();
-    }
-    allCategories.clear();
-    allAisles.clear();
-    allStores.clear();
-    displayMode = DisplayMode.PLANNING;
-    storeFilter = STORE_FILTER_ALL;
-    storage.clear();
-
     new Thread(new Runnable() {
       @Override
       public void run() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        // Read all the items before changing anything, so that a bad file leaves the list as it
+        // was.
+        final List<Item> importedItems = readImportFile(handler);
+        if (importedItems == null) {
+          return;
+        }
+        // Replace the stored items all at once. This gives the items their ids and saves them in
+        // one write. The write takes a while, so it is done without holding the lock, and the
+        // list is marked as being replaced instead, so that a merge or an edit can't change an
+        // item by its old id until the items in memory are replaced too.
         long startTimeDebug = System.currentTimeMillis();
-        int count = 0;
+        synchronized (allItemsLock) {
+          if (replacementsInProgress++ == 0) {
+            seqBeforeReplacement = storage.getChangeSeq();
+          }
+        }
+        boolean replaced = false;
         try {
-          BufferedReader reader = new BufferedReader(new FileReader(new File(Environment.getExternalStorageDirectory().getPath(), IMPORT_FILE_NAME)));
-          try {
-            while (true) {
-              String line = reader.readLine();
-              if (line == null) {
-                break;
-              }
-              line = line.trim();
-              if (line.length() > 0) {
-                Item item = gson.fromJson(line, Item.class);
-                item.setId(storage.getUnusedItemId());
-                synchronized (allItemsLock) {
-                  allItems.add(item);
-                }
-                allCategories.add(item);
-                allAisles.add(item);
-                allStores.add(item);
-                storage.saveItem(item);
-                count++;
-              }
+          replaced = storage.replaceItems(importedItems);
+        } finally {
+          synchronized (allItemsLock) {
+            if (replaced) {
+              allItems.clear();
+              allItems.addAll(importedItems);
+              searchIndex.clear();
+              searchIndexBuilt = false;
             }
-          } finally {
-            reader.close();
+            replacementsInProgress--;
+            allItemsLock.notifyAll();
           }
-        } catch (IOException e) {
-          Log.e(LOG_TAG, "importFromFile caught", e);
+        }
+        restoreTitle(handler);
+        if (!replaced) {
+          return;
         }
         if (DEBUG) {
           long elapsedTimeDebug = System.currentTimeMillis() - startTimeDebug;
-          Log.d(LOG_TAG, "Importing " + count + " items took " + elapsedTimeDebug + " ms");
-          Log.d(LOG_TAG, "Categories:");
-          for (String category : allCategories.getCategoriesArray()) {
-            Log.d(LOG_TAG, "    " + category);
-          }
-          Log.d(LOG_TAG, "Aisles:");
-          for (String aisle : allAisles.getAislesArray()) {
-            Log.d(LOG_TAG, "    " + aisle);
-          }
-          Log.d(LOG_TAG, "Stores:");
-          for (String store : allStores.getStoresArray()) {
-            Log.d(LOG_TAG, "    " + store);
-          }
+          Log.d(LOG_TAG, "Saving " + importedItems.size() + " imported items took " + elapsedTimeDebug + " ms");
         }
         new Handler(Looper.getMainLooper()).post(new Runnable() {
           @Override
           public void run() {
+            allCategories.clear();
+            allAisles.clear();
+            allStores.clear();
+            // Items merged after the import, whose own updates may have run first, are included.
+            synchronized (allItemsLock) {
+              for (Item item : allItems) {
+                allCategories.add(item);
+                allAisles.add(item);
+                allStores.add(item);
+              }
+            }
+            displayMode = DisplayMode.PLANNING;
+            storeFilter = STORE_FILTER_ALL;
+            if (DEBUG) {
+              Log.d(LOG_TAG, "Categories:");
+              for (String category : allCategories.getCategoriesArray()) {
+                Log.d(LOG_TAG, "    " + category);
+              }
+              Log.d(LOG_TAG, "Aisles:");
+              for (String aisle : allAisles.getAislesArray()) {
+                Log.d(LOG_TAG, "    " + aisle);
+              }
+              Log.d(LOG_TAG, "Stores:");
+              for (String store : allStores.getStoresArray()) {
+                Log.d(LOG_TAG, "    " + store);
+              }
+            }
             updateDisplay();
           }
         });
@@ -784,26 +1046,225 @@ public final class ShoppingList extends Activity {
     }).start();
   }
 
-  private void exportToFile() {
+  private void mergeFromFile() {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Handler handler = new Handler(Looper.getMainLooper());
+        List<Item> importedItems = readImportFile(handler);
+        if (importedItems == null) {
+          return;
+        }
+        mergeItems(importedItems);
+        restoreTitle(handler);
+      }
+    }).start();
+  }
+
+  /**
+   * Merges the given imported items into the list and saves the items that changed. Must be called
+   * on a background thread.
+   */
+  private void mergeItems(List<Item> importedItems) {
+    long startTimeDebug = System.currentTimeMillis();
+    final List<Item> itemsToSave;
+    int updatedCount;
+    // Holding the lock for the whole merge keeps an item that is deleted meanwhile from being
+    // saved again, and keeps two merges from both adding the same item. Edits are made while
+    // holding the lock too, so the merge goes into the items themselves. That way the rows that
+    // are shown, and an item that is being edited, are still the items on the list.
     synchronized (allItemsLock) {
+      waitForReplacements();
+      ItemMerger merger = new ItemMerger(allItems);
+      merger.merge(importedItems);
+      List<Item> updatedItems = merger.getUpdatedItems();
+      List<Item> addedItems = merger.getAddedItems();
+      Storage.ItemIdLease lease = storage.leaseItemIds(Math.max(addedItems.size(), 1));
+      for (Item item : addedItems) {
+        item.setId(lease.next());
+      }
+      lease.close();
+      itemsToSave = new ArrayList<>(updatedItems);
+      itemsToSave.addAll(addedItems);
+      updatedCount = updatedItems.size();
+      if (itemsToSave.isEmpty()) {
+        return;
+      }
+      // Only the items that changed are saved, all together.
+      storage.saveItems(itemsToSave);
+      allItems.addAll(addedItems);
+      searchIndex.putAll(itemsToSave);
+    }
+    if (DEBUG) {
+      long elapsedTimeDebug = System.currentTimeMillis() - startTimeDebug;
+      Log.d(LOG_TAG, "Merging " + importedItems.size() + " items updated " + updatedCount + " items and added " + (itemsToSave.size() - updatedCount) + " items in " + elapsedTimeDebug + " ms");
+    }
+    new Handler(Looper.getMainLooper()).post(new Runnable() {
+      @Override
+      public void run() {
+        for (Item item : itemsToSave) {
+          allCategories.add(item);
+          allAisles.add(item);
+          allStores.add(item);
+        }
+        updateDisplay();
+      }
+    });
+  }
+
+  /**
+   * Waits until no import is replacing the items. Must be called while holding allItemsLock, on a
+   * background thread. The wait is not cut short by an interrupt, since the caller has items that
+   * must be saved.
+   */
+  private void waitForReplacements() {
+    boolean interrupted = false;
+    while (replacementsInProgress > 0) {
       try {
-        int count = 0;
-        BufferedWriter writer = new BufferedWriter(new FileWriter(new File(Environment.getExternalStorageDirectory().getPath(), EXPORT_FILE_NAME)));
-        try {
-          for (Item item : allItems) {
-            writer.write(gson.toJson(item).replace("\n", " "));
-            writer.write("\n");
-            count++;
-          }
-        } finally {
-          writer.close();
-          if (DEBUG) {
-            Log.d(LOG_TAG, "Exported " + count + " items");
+        allItemsLock.wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Reads the items in the import file, showing the progress in the title. Must be called on a
+   * background thread.
+   *
+   * @return the items, or null if the file could not be read
+   */
+  private List<Item> readImportFile(final Handler handler) {
+    try {
+      // The format of the file is recognized from its first bytes.
+      InputStream in = new BufferedInputStream(new FileInputStream(new File(Environment.getExternalStorageDirectory().getPath(), IMPORT_FILE_NAME)), IMPORT_BUFFER_SIZE);
+      try {
+        return ItemImporter.readFile(in, new ItemImporter.ProgressListener() {
+          @Override
+          public void onProgress(final int itemCount, final long elapsedMs) {
+            handler.post(new Runnable() {
+              @Override
+              public void run() {
+                setTitle(getString(R.string.ImportProgress, itemCount,
+                    itemCount * 1000L / Math.max(elapsedMs, 1)));
+              }
+            });
           }
+        });
+      } finally {
+        in.close();
+      }
+    } catch (IOException | JsonParseException e) {
+      Log.e(LOG_TAG, "readImportFile caught", e);
+      restoreTitle(handler);
+      return null;
+    }
+  }
+
+  private void restoreTitle(Handler handler) {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        setTitle(R.string.Title);
+      }
+    });
+  }
+
+  /**
+   * Returns the change sequence number that the items on the list are up to date with. While an
+   * import is replacing them, that is the one from before the import, which makes the next export
+   * of changes hold every item. Must be called while holding allItemsLock.
+   */
+  private long getListChangeSeq() {
+    return (replacementsInProgress > 0) ? seqBeforeReplacement : storage.getChangeSeq();
+  }
+
+  private void chooseExportFormat() {
+    final ExportFormat[] formats = {
+        ExportFormat.JSON, ExportFormat.GZIP_JSON, ExportFormat.BINARY };
+    String[] formatNames = {
+        getString(R.string.ExportFormatJson),
+        getString(R.string.ExportFormatGzipJson),
+        getString(R.string.ExportFormatBinary) };
+    new AlertDialog.Builder(this)
+        .setTitle(getString(R.string.ExportItems))
+        .setItems(
+            formatNames,
+            new DialogInterface.OnClickListener() {
+              public void onClick(DialogInterface dialog, int which) {
+                exportToFile(formats[which]);
+              }})
+        .show();
+  }
+
+  private void exportToFile(final ExportFormat format) {
+    // Copy the items, which is quick, and write the copies on another thread, so that nothing
+    // waits for the file to be written.
+    final List<Item> itemsToExport;
+    final long exportSeq;
+    synchronized (allItemsLock) {
+      exportSeq = getListChangeSeq();
+      itemsToExport = new ArrayList<>(allItems.size());
+      for (Item item : allItems) {
+        itemsToExport.add(item.copy());
+      }
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long startTimeDebug = System.currentTimeMillis();
+        try {
+          ItemExporter.export(itemsToExport, new File(Environment.getExternalStorageDirectory().getPath(), EXPORT_FILE_NAME), format);
+        } catch (IOException e) {
+          Log.e(LOG_TAG, "exportToFile caught", e);
+          return;
+        }
+        // The next export of changes starts from this export.
+        storage.saveExportSeq(exportSeq);
+        if (DEBUG) {
+          long elapsedTimeDebug = System.currentTimeMillis() - startTimeDebug;
+          Log.d(LOG_TAG, "Exporting " + itemsToExport.size() + " items took " + elapsedTimeDebug + " ms");
+        }
+      }
+    }).start();
+  }
+
+  private void exportChangesToFile() {
+    // Only the items saved since the last export are copied, along with the ids of the items
+    // deleted since then. If all the items were replaced since then, every item is copied.
+    final long fromSeq = storage.loadExportSeq();
+    final long toSeq;
+    final List<Item> changedItems = new ArrayList<>();
+    final List<Integer> deletedIds;
+    synchronized (allItemsLock) {
+      toSeq = getListChangeSeq();
+      deletedIds = storage.getDeletedItemIdsSince(fromSeq);
+      for (Item item : allItems) {
+        if (deletedIds == null || item.getChangeSeq() > fromSeq) {
+          changedItems.add(item.copy());
         }
-      } catch (IOException e) {
-        Log.e(LOG_TAG, "exportToFile caught", e);
       }
     }
+    final File file = new File(Environment.getExternalStorageDirectory().getPath(),
+        EXPORT_CHANGES_FILE_NAME_PREFIX + fromSeq + "-" + toSeq + EXPORT_CHANGES_FILE_NAME_SUFFIX);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ItemExporter.exportChanges(fromSeq, toSeq, changedItems, deletedIds, file);
+        } catch (IOException e) {
+          Log.e(LOG_TAG, "exportChangesToFile caught", e);
+          return;
+        }
+        storage.saveExportSeq(toSeq);
+        if (DEBUG) {
+          Log.d(LOG_TAG, "Exported " + changedItems.size() + " changed items and "
+              + ((deletedIds != null) ? deletedIds.size() : 0) + " deleted items");
+        }
+      }
+    }).start();
   }
 }
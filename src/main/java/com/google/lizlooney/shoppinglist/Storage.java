@@ -16,14 +16,28 @@
 
 package com.google.lizlooney.shoppinglist;
 
-import android.content.Context;
-import android.content.SharedPreferences;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class handling loading from and saving to storage.
@@ -31,31 +45,417 @@ import java.util.TreeSet;
  * @author lizlooney@gmail.com (Liz Looney)
  */
 public final class Storage {
+  private static final boolean DEBUG = false;
+
   private static final String TAG_MAX_ITEM_ID = "MaxItemId";
   private static final String TAG_ITEM_PREFIX = "Item_";
   private static final String TAG_DISPLAY_MODE = "DisplayMode";
   private static final String TAG_STORE_FILTER = "StoreFilter";
+  private static final String TAG_COMPACTED_SEQ = "CompactedSeq";
+  private static final String TAG_FREE_ITEM_IDS = "FreeItemIds";
+  private static final String TAG_STRING_DICTIONARY = "StringDictionary";
+  private static final String TAG_DELETED_ITEM_SEQS = "DeletedItemSeqs";
+  private static final String TAG_RESET_SEQ = "ResetSeq";
+  private static final String TAG_EXPORT_SEQ = "ExportSeq";
+  private static final String TAG_INBOX_OFFSETS = "InboxOffsets";
+
+  private static final String PREFS_NAME = "ShoppingList";
+  private static final String ITEM_SHARD_PREFS_NAME_PREFIX = "ShoppingList_Items_";
+  /**
+   * The number of files that items are spread across, by id. Saving an item only rewrites the
+   * file that holds it. Changing this would orphan the items that are already stored.
+   */
+  private static final int ITEM_SHARD_COUNT = 16;
+
+  private static final String JOURNAL_FILE_NAME = "ShoppingList.journal";
+  private static final String COMPACTING_JOURNAL_FILE_NAME = "ShoppingList.journal.compacting";
+  /**
+   * The number of journal records that triggers folding the journal into the shard files.
+   */
+  private static final int COMPACTION_RECORD_COUNT = 1000;
+
+  /**
+   * Snapshot files are named with this prefix followed by the change sequence number of the
+   * snapshot, which also makes it the snapshot's generation.
+   */
+  private static final String SNAPSHOT_FILE_NAME_PREFIX = "ShoppingList.snapshot.";
+  /**
+   * The file that held the only snapshot, before there were generations.
+   */
+  private static final String OLD_SNAPSHOT_FILE_NAME = "ShoppingList.snapshot";
+  /**
+   * The number of snapshot generations that are kept, so that if the newest one is damaged the
+   * one before it can be used.
+   */
+  private static final int SNAPSHOT_GENERATION_COUNT = 2;
+
+  /**
+   * The longest time that a change waits before being committed, when durability is GROUP_COMMIT.
+   */
+  private static final long GROUP_COMMIT_INTERVAL_MS = 500;
+  /**
+   * The number of pending changes that triggers a commit right away, when durability is
+   * GROUP_COMMIT.
+   */
+  private static final int GROUP_COMMIT_MAX_CHANGES = 100;
+  /**
+   * The longest time that {@link #close} waits for a snapshot or compaction that is being written.
+   */
+  private static final long CLOSE_TIMEOUT_MS = 10000;
 
   private final Gson gson;
-  private SharedPreferences sharedPreferences;
-  private SharedPreferences.Editor sharedPrefsEditor;
+  private final Logger logger;
+  private StorageBackend.Store mainStore;
+  private final StorageBackend.Store[] itemShards = new StorageBackend.Store[ITEM_SHARD_COUNT];
+  private File filesDir;
+  /**
+   * The strings that items in the shard files refer to. Loaded once, and committed to the main
+   * file before any shard that refers to a new string.
+   */
+  private StringDictionary stringDictionary;
+  /**
+   * The journal that changes to items are appended to. The shard files only hold the items as of
+   * the last compaction. Guarded by lock.
+   */
+  private ItemJournal journal;
+  /**
+   * The change sequence number of the last change to items. Guarded by lock.
+   */
+  private long changeSeq;
+  /**
+   * The change sequence number of the snapshot that was last written, or -1. Guarded by lock.
+   */
+  private long snapshotSeq = -1;
+  /**
+   * The change sequence number of the delete of each item id that has not been saved since, so
+   * that an export of changes can include deletes. Guarded by lock.
+   */
+  private final Map<Integer, Long> deletedItemSeqs = new TreeMap<>();
+  /**
+   * The change sequence number at which all items were last replaced or cleared. Deletes before
+   * then are not tracked. Guarded by lock.
+   */
+  private long resetSeq;
+  /**
+   * The change sequence number of the last export. It is read from here, since saving it is
+   * written behind. Guarded by lock.
+   */
+  private long exportSeq;
 
   private final Object lock = new Object();
-  private int maxItemId;
-  private final List<Integer> itemIdHoles = new ArrayList<>();
+  /**
+   * Whether {@link #close} has been called. Changes made after that are not saved, so that a
+   * closed storage never writes to files that another storage may be using. Guarded by lock.
+   */
+  private boolean closed;
+  private final ItemIdAllocator itemIdAllocator = new ItemIdAllocator();
+
+  /**
+   * The editors holding the changes that have not been committed yet, one per file that has
+   * changes. Guarded by lock.
+   */
+  private final Map<StorageBackend.Store, StorageBackend.Editor> pendingEditors =
+      new LinkedHashMap<>();
+  private int pendingChangeCount;
+  private ScheduledFuture<?> scheduledCommit;
+  private Durability durability = Durability.GROUP_COMMIT;
+  /**
+   * Held while committing so that pending changes reach the disk in the order they were made.
+   */
+  private final Object commitLock = new Object();
+  /**
+   * Held while folding the journal into the shard files, writing a snapshot, or replacing all the
+   * items. These take a long time, so they hold commitLock only briefly, and flushing doesn't wait
+   * for them. Taken before commitLock.
+   */
+  private final Object compactionLock = new Object();
+  private final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor();
+  private final Runnable commitRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+  /**
+   * Whether compactRunnable is waiting to run. Guarded by lock.
+   */
+  private boolean compactionScheduled;
+  private final Runnable compactRunnable = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (compactionLock) {
+        synchronized (lock) {
+          compactionScheduled = false;
+        }
+        // The items may have been replaced or cleared since this was scheduled.
+        if (needsCompaction()) {
+          compactJournal();
+        }
+      }
+    }
+  };
 
-  public Storage(Gson gson) {
+  public Storage(Gson gson, Logger logger) {
     this.gson = gson;
+    this.logger = logger;
   }
 
-  public void init(Context context) {
-    sharedPreferences = context.getSharedPreferences("ShoppingList", Context.MODE_PRIVATE);
+  /**
+   * Initializes this storage to keep its data in the given backend.
+   */
+  void init(StorageBackend backend) {
+    mainStore = backend.getStore(PREFS_NAME);
+    for (int i = 0; i < ITEM_SHARD_COUNT; i++) {
+      itemShards[i] = backend.getStore(ITEM_SHARD_PREFS_NAME_PREFIX + i);
+    }
+    filesDir = backend.getFilesDir();
+    String encodedStrings = mainStore.getString(TAG_STRING_DICTIONARY, null);
+    stringDictionary = new StringDictionary((encodedStrings != null)
+        ? Arrays.asList(gson.fromJson(encodedStrings, String[].class))
+        : Collections.<String>emptyList());
+    synchronized (lock) {
+      exportSeq = mainStore.getLong(TAG_EXPORT_SEQ, 0);
+      journal = openJournal();
+    }
   }
 
-  public void clear() {
+  /**
+   * Sets the durability level for changes made after this call. Switching to SYNCHRONOUS commits
+   * any pending changes first.
+   */
+  public void setDurability(Durability durability) {
+    synchronized (lock) {
+      this.durability = durability;
+    }
+    if (durability == Durability.SYNCHRONOUS) {
+      flush();
+    }
+  }
+
+  /**
+   * Commits any pending changes to disk, waiting until they are written.
+   */
+  public void flush() {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+    }
+    writePendingChanges();
+  }
+
+  /**
+   * Commits the pending changes and waits for any snapshot, compaction or replacement of the items
+   * that is being written, then closes the journal. Changes made after this are not saved. This must be called before
+   * another storage is created for the same backend, so that the two never write the same files.
+   */
+  public void close() {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    writePendingChanges();
+    committer.shutdown();
+    try {
+      if (!committer.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        logger.error("Storage.close timed out");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (compactionLock) {
+      synchronized (commitLock) {
+        synchronized (lock) {
+          if (journal != null) {
+            try {
+              journal.close();
+            } catch (IOException e) {
+              logger.error("Storage.close caught", e);
+            }
+            journal = null;
+          }
+          pendingEditors.clear();
+        }
+      }
+    }
+  }
+
+  private void writePendingChanges() {
+    commitPendingChanges();
+    if (needsCompaction()) {
+      scheduleCompaction();
+    }
+  }
+
+  /**
+   * Commits the pending changes and syncs the journal. This never waits for a compaction.
+   */
+  private void commitPendingChanges() {
+    synchronized (commitLock) {
+      List<StorageBackend.Editor> editors;
+      ItemJournal journalToSync;
+      synchronized (lock) {
+        journalToSync = journal;
+        editors = new ArrayList<>(pendingEditors.values());
+        pendingEditors.clear();
+        pendingChangeCount = 0;
+        if (scheduledCommit != null) {
+          scheduledCommit.cancel(false);
+          scheduledCommit = null;
+        }
+      }
+      for (StorageBackend.Editor editor : editors) {
+        editor.commit();
+      }
+      if (journalToSync != null) {
+        try {
+          journalToSync.sync();
+        } catch (IOException e) {
+          logger.error("Storage.flush caught", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if the journal is long enough to be folded into the shard files, or if the app
+   * died during the last compaction.
+   */
+  private boolean needsCompaction() {
+    synchronized (lock) {
+      if (journal != null && journal.getRecordCount() >= COMPACTION_RECORD_COUNT) {
+        return true;
+      }
+    }
+    return new File(filesDir, COMPACTING_JOURNAL_FILE_NAME).exists();
+  }
+
+  /**
+   * Compacts the journal on the committer thread. Compaction only holds compactionLock, so that
+   * rewriting the shard files never holds up a thread that flushes.
+   */
+  private void scheduleCompaction() {
     synchronized (lock) {
-      maxItemId = 0;
-      itemIdHoles.clear();
+      if (closed || compactionScheduled) {
+        return;
+      }
+      compactionScheduled = true;
+    }
+    committer.execute(compactRunnable);
+  }
+
+  /**
+   * Folds the journal into the shard files. Must be called while holding compactionLock.
+   */
+  private void compactJournal() {
+    File compactingFile = new File(filesDir, COMPACTING_JOURNAL_FILE_NAME);
+    // If the app died during the last compaction, finish that one first. Otherwise, start a new
+    // journal so that items can still be saved while this one is being folded.
+    synchronized (lock) {
+      // The item ids are committed with the other pending changes, so that they are never
+      // overwritten by older ones.
+      putItemIds(edit(mainStore));
+      if (!compactingFile.exists() && journal != null) {
+        try {
+          journal.close();
+        } catch (IOException e) {
+          logger.error("Storage.compactJournal caught", e);
+        }
+        if (!journal.getFile().renameTo(compactingFile)) {
+          logger.error("Storage.compactJournal could not rename journal");
+        }
+        journal = openJournal();
+      }
+    }
+    if (!compactingFile.exists()) {
+      return;
+    }
+
+    Map<Integer, Item> items = new TreeMap<>();
+    long compactedSeq;
+    try {
+      // A delta in the journal applies to the item as it is in the shards.
+      compactedSeq = ItemJournal.replay(compactingFile, 0, items,
+          new ItemJournal.BaseItemLoader() {
+            @Override
+            public Item load(int id) {
+              return toItem(id, loadItemJson(id));
+            }
+          }, null);
+    } catch (IOException e) {
+      logger.error("Storage.compactJournal caught", e);
+      return;
+    }
+    // loadItems only looks in the shards for ids that are not free, so the free ids must be
+    // committed before any shard gets an item whose id was free.
+    commitPendingChanges();
+    Map<StorageBackend.Store, StorageBackend.Editor> editors = new LinkedHashMap<>();
+    for (Map.Entry<Integer, Item> entry : items.entrySet()) {
+      int id = entry.getKey();
+      StorageBackend.Store shard = getItemShard(id);
+      StorageBackend.Editor editor = editors.get(shard);
+      if (editor == null) {
+        editor = shard.edit();
+        editors.put(shard, editor);
+      }
+      Item item = entry.getValue();
+      if (item != null) {
+        editor.putString(TAG_ITEM_PREFIX + id, encodeItem(item));
+      } else {
+        editor.remove(TAG_ITEM_PREFIX + id);
+      }
+    }
+    if (!commitStringDictionary()) {
+      return;
+    }
+    for (StorageBackend.Editor editor : editors.values()) {
+      if (!editor.commit()) {
+        // Keep the journal so that the next compaction tries again.
+        return;
+      }
+    }
+    // Snapshots older than the compacted journal can no longer be used, because the journal
+    // records that would bring them up to date are about to be deleted.
+    mainStore.edit().putLong(TAG_COMPACTED_SEQ, compactedSeq).commit();
+    compactingFile.delete();
+  }
+
+  /**
+   * Deletes all items from storage.
+   */
+  public void clear() {
+    flush();
+    synchronized (compactionLock) {
+      synchronized (commitLock) {
+        synchronized (lock) {
+          if (isClosed("clear")) {
+            return;
+          }
+          itemIdAllocator.reset(new BitSet());
+          deletedItemSeqs.clear();
+          resetSeq = ++changeSeq;
+          StorageBackend.Editor editor = mainStore.edit();
+          putItemIds(editor);
+          editor.putLong(TAG_RESET_SEQ, resetSeq);
+          editor.putLong(TAG_COMPACTED_SEQ, changeSeq).commit();
+          deleteSnapshots(Long.MAX_VALUE);
+          for (StorageBackend.Store shard : itemShards) {
+            shard.edit().clear().commit();
+          }
+          if (journal != null) {
+            try {
+              journal.close();
+            } catch (IOException e) {
+              logger.error("Storage.clear caught", e);
+            }
+          }
+          new File(filesDir, COMPACTING_JOURNAL_FILE_NAME).delete();
+          new File(filesDir, JOURNAL_FILE_NAME).delete();
+          journal = openJournal();
+        }
+      }
     }
   }
 
@@ -63,23 +463,438 @@ public final class Storage {
    * Loads the given list with the items from storage.
    */
   public void loadItems(List<Item> items) {
-    synchronized (lock) {
-      maxItemId = getInt(TAG_MAX_ITEM_ID);
+    // Holding compactionLock keeps a snapshot that is being written from being taken for a
+    // leftover temporary file, and keeps the shard files from changing while they are read.
+    synchronized (compactionLock) {
+      synchronized (commitLock) {
+        synchronized (lock) {
+          loadItemsLocked(items);
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads the items. Must be called while holding compactionLock, commitLock and lock.
+   */
+  private void loadItemsLocked(List<Item> items) {
+    int maxItemId = getInt(TAG_MAX_ITEM_ID);
+    String encodedFreeIds = getString(TAG_FREE_ITEM_IDS);
+    if (encodedFreeIds != null) {
+      itemIdAllocator.decode(maxItemId, encodedFreeIds);
+    } else {
+      // The free ids have not been saved yet, so every id up to the max must be checked.
+      itemIdAllocator.decode(maxItemId, "");
+      moveItemsToShards(maxItemId);
+    }
+    changeSeq = mainStore.getLong(TAG_COMPACTED_SEQ, 0);
+    resetSeq = mainStore.getLong(TAG_RESET_SEQ, 0);
+    deletedItemSeqs.clear();
+    decodeDeletedItemSeqs(getString(TAG_DELETED_ITEM_SEQS), deletedItemSeqs);
+    new File(filesDir, OLD_SNAPSHOT_FILE_NAME).delete();
+
+    // Start from the newest good snapshot if there is a usable one, otherwise from the shards.
+    // Either way, the journals hold the changes made since then.
+    Map<Integer, Item> loadedItems = new TreeMap<>();
+    ItemSnapshot snapshot = readSnapshot(changeSeq);
+    boolean useSnapshot = snapshot != null;
+    if (useSnapshot) {
+      snapshotSeq = snapshot.getSeq();
+      changeSeq = snapshotSeq;
+      for (Item item : snapshot.getItems()) {
+        loadedItems.put(item.getId(), item);
+      }
+    } else {
+      // Only look for ids that are in use.
       for (int id = 0; id <= maxItemId; id++) {
-        Item item = loadItem(id);
-        if (item != null) {
-          items.add(item);
-        } else {
-          itemIdHoles.add(id);
+        if (!itemIdAllocator.isFree(id)) {
+          Item item = toItem(id, loadItemJson(id));
+          if (item != null) {
+            loadedItems.put(id, item);
+          }
         }
       }
     }
+    if (DEBUG) {
+      logger.debug("Storage.loadItems using "
+          + (useSnapshot ? "snapshot" : "shards"));
+    }
+    readJournals(useSnapshot ? snapshotSeq : 0, loadedItems);
+    loadedItems.values().removeAll(Collections.singleton(null));
+    for (Item item : loadedItems.values()) {
+      item.clearDirtyFields();
+      // An id that was deleted and then used again is no longer deleted.
+      Long deletedSeq = deletedItemSeqs.get(item.getId());
+      if (deletedSeq != null && deletedSeq <= item.getChangeSeq()) {
+        deletedItemSeqs.remove(item.getId());
+      }
+    }
+
+    BitSet usedIds = new BitSet();
+    for (Item item : loadedItems.values()) {
+      usedIds.set(item.getId());
+    }
+    itemIdAllocator.reset(usedIds);
+    items.addAll(loadedItems.values());
+    if (itemIdAllocator.getFreeCount() > loadedItems.size()) {
+      compactItemIds(items);
+    } else {
+      putItemIds(edit(mainStore));
+      pendingChangeCount++;
+      scheduleCommit(0);
+    }
   }
 
-  private Item loadItem(int id) {
-    String json = getString(TAG_ITEM_PREFIX + id);
+  /**
+   * Renumbers items so that the ids in use are dense, by moving the items with the highest ids
+   * into the free ids. Only the moved items are rewritten.
+   *
+   * @param items all the items
+   */
+  public void compactItemIds(List<Item> items) {
+    synchronized (lock) {
+      List<Item> sortedItems = new ArrayList<>(items);
+      Collections.sort(sortedItems, new Comparator<Item>() {
+        @Override
+        public int compare(Item o1, Item o2) {
+          return o2.getId() - o1.getId();
+        }
+      });
+      List<Item> movedItems = new ArrayList<>();
+      List<Integer> oldIds = new ArrayList<>();
+      for (Item item : sortedItems) {
+        if (item.getId() < items.size()) {
+          break;
+        }
+        oldIds.add(item.getId());
+        itemIdAllocator.release(item.getId());
+        item.setId(itemIdAllocator.allocate());
+        movedItems.add(item);
+      }
+      if (!movedItems.isEmpty()) {
+        // Move the items in one batch, so that an item is never lost or duplicated.
+        journalBatch(movedItems, oldIds);
+      }
+      if (DEBUG) {
+        logger.debug("Storage.compactItemIds moved " + movedItems.size() + " items");
+      }
+      putItemIds(edit(mainStore));
+      pendingChangeCount++;
+      scheduleCommit(0);
+    }
+  }
+
+  /**
+   * Reads the newest snapshot that is intact and includes every change up to the given change
+   * sequence number. A damaged snapshot is skipped, which rolls back to the generation before it.
+   *
+   * @return the snapshot, or null if there is no usable snapshot
+   */
+  private ItemSnapshot readSnapshot(long minSeq) {
+    for (long seq : listSnapshotSeqs()) {
+      if (seq < minSeq) {
+        break;
+      }
+      try {
+        ItemSnapshot snapshot = ItemSnapshot.read(getSnapshotFile(seq));
+        if (snapshot != null && snapshot.getSeq() == seq) {
+          return snapshot;
+        }
+      } catch (IOException e) {
+        logger.error("Storage.readSnapshot caught", e);
+      }
+      if (DEBUG) {
+        logger.debug("Storage.readSnapshot skipping damaged snapshot " + seq);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Writes a binary snapshot of the given items, which must be all the items, so that the next
+   * {@link #loadItems} can skip parsing the JSON of each item. The items are encoded on the
+   * calling thread and written on a background thread.
+   */
+  public void saveSnapshot(List<Item> items) {
+    final long seq;
+    synchronized (lock) {
+      if (closed || journal == null || changeSeq == snapshotSeq) {
+        return;
+      }
+      seq = changeSeq;
+    }
+    final byte[] snapshot = ItemSnapshot.encode(seq, items);
+    committer.execute(new Runnable() {
+      @Override
+      public void run() {
+        // Make sure the journal holds every change in the snapshot before writing it.
+        flush();
+        synchronized (compactionLock) {
+          synchronized (lock) {
+            if (seq <= snapshotSeq) {
+              // A newer snapshot was written meanwhile.
+              return;
+            }
+          }
+          try {
+            writeSnapshot(seq, snapshot);
+          } catch (IOException e) {
+            logger.error("Storage.saveSnapshot caught", e);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Replaces all the items in storage with the given items, all together or not at all, and gives
+   * the given items new ids. This is much faster than deleting and saving items one by one.
+   *
+   * <p>The new items are written as a new snapshot generation, which takes effect when it is
+   * renamed into place. Until then, loading finds the old items. After that, the new items are
+   * written to the shards and the old journal is discarded, so the shards hold the new items too.
+   *
+   * <p>Writing the items takes a while, but pending changes can still be committed meanwhile. Items
+   * must not be saved or deleted by their old ids while this runs, since after the old journal is
+   * discarded, those ids may belong to the new items.
+   *
+   * @return true if the items were replaced
+   */
+  public boolean replaceItems(List<Item> items) {
+    flush();
+    synchronized (compactionLock) {
+      long seq;
+      StorageBackend.Editor resetEditor = mainStore.edit();
+      synchronized (lock) {
+        if (isClosed("replaceItems")) {
+          return false;
+        }
+        seq = ++changeSeq;
+        // Recorded before the new items take effect, so that an export of changes never
+        // describes the replacement as a few deletes.
+        resetSeq = seq;
+        deletedItemSeqs.clear();
+        putItemIds(resetEditor);
+      }
+      if (!resetEditor.putLong(TAG_RESET_SEQ, seq).commit()) {
+        return false;
+      }
+      BitSet usedIds = new BitSet();
+      for (int i = 0; i < items.size(); i++) {
+        Item item = items.get(i);
+        item.setId(i);
+        item.setChangeSeq(seq);
+        usedIds.set(i);
+      }
+      try {
+        writeSnapshot(seq, ItemSnapshot.encode(seq, items));
+      } catch (IOException e) {
+        logger.error("Storage.replaceItems caught", e);
+        return false;
+      }
+      for (Item item : items) {
+        item.clearDirtyFields();
+      }
+
+      synchronized (lock) {
+        // The old journal only holds changes that the new snapshot replaces.
+        if (journal != null) {
+          try {
+            journal.close();
+          } catch (IOException e) {
+            logger.error("Storage.replaceItems caught", e);
+          }
+        }
+        new File(filesDir, COMPACTING_JOURNAL_FILE_NAME).delete();
+        new File(filesDir, JOURNAL_FILE_NAME).delete();
+        journal = openJournal();
+        itemIdAllocator.reset(usedIds);
+        // The pending changes to the shards are to the old items, and the pending item ids are
+        // older than these.
+        for (StorageBackend.Store shard : itemShards) {
+          pendingEditors.remove(shard);
+        }
+        putItemIds(edit(mainStore));
+      }
+      List<StorageBackend.Editor> shardEditors = new ArrayList<>(ITEM_SHARD_COUNT);
+      for (int i = 0; i < ITEM_SHARD_COUNT; i++) {
+        StorageBackend.Editor editor = itemShards[i].edit().clear();
+        for (int id = i; id < items.size(); id += ITEM_SHARD_COUNT) {
+          editor.putString(TAG_ITEM_PREFIX + id, encodeItem(items.get(id)));
+        }
+        shardEditors.add(editor);
+      }
+      if (!commitStringDictionary()) {
+        // The new snapshot still holds the new items.
+        return true;
+      }
+      for (StorageBackend.Editor editor : shardEditors) {
+        editor.commit();
+      }
+      StorageBackend.Editor editor = mainStore.edit();
+      synchronized (lock) {
+        putItemIds(editor);
+      }
+      editor.putLong(TAG_COMPACTED_SEQ, seq).commit();
+      // The older generations are not needed, now that the shards hold the new items.
+      deleteSnapshots(seq);
+    }
+    return true;
+  }
+
+  /**
+   * Writes the given encoded snapshot as a new generation and deletes the generations that are no
+   * longer kept. Must be called while holding compactionLock.
+   */
+  private void writeSnapshot(long seq, byte[] snapshot) throws IOException {
+    ItemSnapshot.write(getSnapshotFile(seq), snapshot);
+    synchronized (lock) {
+      snapshotSeq = Math.max(snapshotSeq, seq);
+    }
+    List<Long> seqs = listSnapshotSeqs();
+    for (int i = SNAPSHOT_GENERATION_COUNT; i < seqs.size(); i++) {
+      getSnapshotFile(seqs.get(i)).delete();
+    }
+  }
+
+  /**
+   * Deletes the snapshot generations older than the given change sequence number.
+   */
+  private void deleteSnapshots(long beforeSeq) {
+    for (long seq : listSnapshotSeqs()) {
+      if (seq < beforeSeq) {
+        getSnapshotFile(seq).delete();
+      }
+    }
+    synchronized (lock) {
+      if (snapshotSeq < beforeSeq) {
+        snapshotSeq = -1;
+      }
+    }
+  }
+
+  private File getSnapshotFile(long seq) {
+    return new File(filesDir, SNAPSHOT_FILE_NAME_PREFIX + seq);
+  }
+
+  /**
+   * Returns the change sequence numbers of the snapshot generations, newest first.
+   */
+  private List<Long> listSnapshotSeqs() {
+    List<Long> seqs = new ArrayList<>();
+    String[] names = filesDir.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(SNAPSHOT_FILE_NAME_PREFIX)) {
+          try {
+            seqs.add(Long.parseLong(name.substring(SNAPSHOT_FILE_NAME_PREFIX.length())));
+          } catch (NumberFormatException e) {
+            // A temporary file left behind by a snapshot that was being written.
+            new File(filesDir, name).delete();
+          }
+        }
+      }
+    }
+    Collections.sort(seqs, Collections.<Long>reverseOrder());
+    return seqs;
+  }
+
+  /**
+   * Moves items saved before sharding from the main file into the shard files.
+   */
+  private void moveItemsToShards(int maxItemId) {
+    List<String> movedTags = new ArrayList<>();
+    for (int id = 0; id <= maxItemId; id++) {
+      String tag = TAG_ITEM_PREFIX + id;
+      String json = mainStore.getString(tag, null);
+      if (json != null) {
+        edit(getItemShard(id)).putString(tag, json);
+        movedTags.add(tag);
+      }
+    }
+    if (!movedTags.isEmpty()) {
+      // The shard files are committed before the main file, so an item is never in neither.
+      for (String tag : movedTags) {
+        edit(mainStore).remove(tag);
+      }
+      pendingChangeCount++;
+      scheduleCommit(0);
+    }
+  }
+
+  private StorageBackend.Store getItemShard(int id) {
+    return itemShards[id % ITEM_SHARD_COUNT];
+  }
+
+  /**
+   * Applies the changes newer than the given change sequence number from the journals to the
+   * given items, which must hold every item as of that change sequence number. Deleted items are
+   * left in the map as null.
+   */
+  private void readJournals(long afterSeq, Map<Integer, Item> items) {
+    try {
+      // The journal being compacted, if any, is older than the current journal.
+      long seq = ItemJournal.replay(new File(filesDir, COMPACTING_JOURNAL_FILE_NAME), afterSeq,
+          items, null, deletedItemSeqs);
+      seq = ItemJournal.replay(
+          new File(filesDir, JOURNAL_FILE_NAME), seq, items, null, deletedItemSeqs);
+      changeSeq = Math.max(changeSeq, seq);
+    } catch (IOException e) {
+      logger.error("Storage.readJournals caught", e);
+    }
+  }
+
+  /**
+   * Encodes deleted item ids and their change sequence numbers as "id:seq,id:seq".
+   */
+  private static String encodeDeletedItemSeqs(Map<Integer, Long> deletedItemSeqs) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<Integer, Long> entry : deletedItemSeqs.entrySet()) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(entry.getKey()).append(':').append(entry.getValue());
+    }
+    return sb.toString();
+  }
+
+  private static void decodeDeletedItemSeqs(String s, Map<Integer, Long> deletedItemSeqs) {
+    if (s == null || s.isEmpty()) {
+      return;
+    }
+    for (String entry : s.split(",")) {
+      int colon = entry.indexOf(':');
+      deletedItemSeqs.put(Integer.parseInt(entry.substring(0, colon)),
+          Long.parseLong(entry.substring(colon + 1)));
+    }
+  }
+
+  private String loadItemJson(int id) {
+    String tag = TAG_ITEM_PREFIX + id;
+    // Until moveItemsToShards has been committed, the item may still be in the main file.
+    return getItemShard(id).getString(tag, mainStore.getString(tag, null));
+  }
+
+  /**
+   * Decodes the given item from a shard file.
+   *
+   * @return the item, or null if there is no item or it can't be decoded
+   */
+  private Item toItem(int id, String json) {
     if (json != null) {
-      Item item = gson.fromJson(json, Item.class);
+      Item item;
+      try {
+        item = ItemShardCodec.isEncoded(json)
+            ? ItemShardCodec.decode(json, stringDictionary)
+            : gson.fromJson(json, Item.class);
+      } catch (IllegalArgumentException | JsonParseException e) {
+        // Skip the item rather than losing all of them.
+        logger.error("Storage.toItem caught", e);
+        return null;
+      }
+      if (item == null) {
+        return null;
+      }
       item.setId(id);
       return item;
     }
@@ -87,47 +902,159 @@ public final class Storage {
     return null;
   }
 
+  private String encodeItem(Item item) {
+    return ItemShardCodec.encode(item, stringDictionary);
+  }
+
+  /**
+   * Commits the strings that were added to the dictionary, if any.
+   *
+   * @return true if the dictionary holds every string that the shards may refer to
+   */
+  private boolean commitStringDictionary() {
+    synchronized (stringDictionary) {
+      if (!stringDictionary.hasUnsavedStrings()) {
+        return true;
+      }
+      List<String> strings = stringDictionary.getStrings();
+      if (!mainStore.edit().putString(TAG_STRING_DICTIONARY, gson.toJson(strings)).commit()) {
+        return false;
+      }
+      stringDictionary.markSaved(strings.size());
+      return true;
+    }
+  }
+
   /**
    * Deletes the item with the given id from storage.
    */
   public void deleteItem(Item item) {
     synchronized (lock) {
-      edit();
       int id = item.getId();
-      removeValue(TAG_ITEM_PREFIX + id);
-      if (id == maxItemId) {
-        maxItemId = id - 1;
-        putInt(TAG_MAX_ITEM_ID, maxItemId);
-      } else {
-        itemIdHoles.add(id);
-      }
-      commit();
+      journalDelete(id);
+      itemIdAllocator.release(id);
+      putItemIds(edit(mainStore));
     }
+    commit();
   }
 
   public int getUnusedItemId() {
+    int id;
     synchronized (lock) {
-      int size = itemIdHoles.size();
-      if (size > 0) {
-        return itemIdHoles.remove(size - 1);
+      id = itemIdAllocator.allocate();
+      putItemIds(edit(mainStore));
+    }
+    commit();
+    return id;
+  }
+
+  /**
+   * Leases blocks of unused item ids, for adding many items at once. Each block costs one write of
+   * the item ids, instead of one write per item. Ids that were leased but not used become free
+   * again when the lease is closed or, if the app dies first, when the items are next loaded.
+   *
+   * @param blockSize the number of ids to reserve at a time
+   */
+  public ItemIdLease leaseItemIds(int blockSize) {
+    return new ItemIdLease(blockSize);
+  }
+
+  /**
+   * Class handing out item ids from blocks that are reserved all at once.
+   */
+  public final class ItemIdLease {
+    private final int[] block;
+    private int blockPosition;
+
+    private ItemIdLease(int blockSize) {
+      block = new int[blockSize];
+      blockPosition = blockSize;
+    }
+
+    /**
+     * Returns an unused item id, reserving another block of ids if needed.
+     */
+    public int next() {
+      if (blockPosition == block.length) {
+        synchronized (lock) {
+          for (int i = 0; i < block.length; i++) {
+            block[i] = itemIdAllocator.allocate();
+          }
+          putItemIds(edit(mainStore));
+        }
+        commit();
+        blockPosition = 0;
       }
-      maxItemId++;
-      edit();
-      putInt(TAG_MAX_ITEM_ID, maxItemId);
+      return block[blockPosition++];
+    }
+
+    /**
+     * Frees the ids that were reserved but not handed out.
+     */
+    public void close() {
+      if (blockPosition == block.length) {
+        return;
+      }
+      synchronized (lock) {
+        for (int i = blockPosition; i < block.length; i++) {
+          itemIdAllocator.release(block[i]);
+        }
+        putItemIds(edit(mainStore));
+      }
+      blockPosition = block.length;
       commit();
-      return maxItemId;
     }
   }
 
   /**
-   * Saves the given item to storage.
+   * Saves the given item to storage. Only the fields that changed since the item was last saved
+   * are written.
    */
   public void saveItem(Item item) {
+    if (item.getDirtyFields() == 0) {
+      return;
+    }
     synchronized (lock) {
-      edit();
-      putString(TAG_ITEM_PREFIX + item.getId(), gson.toJson(item));
-      commit();
+      journalPut(item);
     }
+    commit();
+  }
+
+  /**
+   * Saves the given items to storage, all together or not at all.
+   */
+  public void saveItems(Collection<Item> items) {
+    updateItems(items, Collections.<Item>emptyList());
+  }
+
+  /**
+   * Deletes the given items from storage, all together or not at all.
+   */
+  public void deleteItems(Collection<Item> items) {
+    updateItems(Collections.<Item>emptyList(), items);
+  }
+
+  /**
+   * Saves some items to and deletes other items from storage, all together or not at all.
+   */
+  public void updateItems(Collection<Item> itemsToSave, Collection<Item> itemsToDelete) {
+    if (itemsToSave.isEmpty() && itemsToDelete.isEmpty()) {
+      return;
+    }
+    List<Integer> idsToDelete = new ArrayList<>(itemsToDelete.size());
+    for (Item item : itemsToDelete) {
+      idsToDelete.add(item.getId());
+    }
+    synchronized (lock) {
+      journalBatch(itemsToSave, idsToDelete);
+      if (!idsToDelete.isEmpty()) {
+        for (int id : idsToDelete) {
+          itemIdAllocator.release(id);
+        }
+        putItemIds(edit(mainStore));
+      }
+    }
+    commit();
   }
 
   /**
@@ -145,8 +1072,9 @@ public final class Storage {
    * Saves the display mode to storage.
    */
   public void saveDisplayMode(DisplayMode displayMode) {
-    edit();
-    putString(TAG_DISPLAY_MODE, displayMode.toString());
+    synchronized (lock) {
+      putString(TAG_DISPLAY_MODE, displayMode.toString());
+    }
     commit();
   }
 
@@ -161,37 +1089,272 @@ public final class Storage {
    * Saves the store filter to storage.
    */
   public void saveStoreFilter(String storeFilter) {
-    edit();
-    putString(TAG_STORE_FILTER, storeFilter);
+    synchronized (lock) {
+      putString(TAG_STORE_FILTER, storeFilter);
+    }
+    commit();
+  }
+
+  /**
+   * Returns the change sequence number of the last change to items. Each item saved after it will
+   * have a higher change sequence number.
+   */
+  public long getChangeSeq() {
+    synchronized (lock) {
+      return changeSeq;
+    }
+  }
+
+  /**
+   * Returns the ids of the items that were deleted after the given change sequence number, and not
+   * saved since. The number must not be before the last saved export.
+   *
+   * @return the ids, or null if all the items were replaced or cleared after the given number, in
+   *     which case the changes since then can't be described item by item
+   */
+  public List<Integer> getDeletedItemIdsSince(long seq) {
+    synchronized (lock) {
+      if (seq < resetSeq) {
+        return null;
+      }
+      List<Integer> ids = new ArrayList<>();
+      for (Map.Entry<Integer, Long> entry : deletedItemSeqs.entrySet()) {
+        if (entry.getValue() > seq) {
+          ids.add(entry.getKey());
+        }
+      }
+      return ids;
+    }
+  }
+
+  /**
+   * Loads the number of bytes of each import inbox file that have been imported, by file name.
+   */
+  public Map<String, Long> loadInboxOffsets() {
+    String s = getString(TAG_INBOX_OFFSETS);
+    Map<String, Long> offsets = new TreeMap<>();
+    if (s != null) {
+      Map<String, Long> savedOffsets =
+          gson.fromJson(s, new TypeToken<Map<String, Long>>() {}.getType());
+      offsets.putAll(savedOffsets);
+    }
+    return offsets;
+  }
+
+  /**
+   * Saves the number of bytes of each import inbox file that have been imported, by file name.
+   */
+  public void saveInboxOffsets(Map<String, Long> offsets) {
+    synchronized (lock) {
+      putString(TAG_INBOX_OFFSETS, gson.toJson(offsets));
+    }
+    commit();
+  }
+
+  /**
+   * Loads the change sequence number of the last export, or 0 if there was none.
+   */
+  public long loadExportSeq() {
+    synchronized (lock) {
+      return exportSeq;
+    }
+  }
+
+  /**
+   * Saves the change sequence number of the last export. The deletes up to it are forgotten, since
+   * the next export of changes starts after it. An export that finishes after a later one doesn't
+   * move it back.
+   */
+  public void saveExportSeq(long exportSeq) {
+    synchronized (lock) {
+      if (exportSeq <= this.exportSeq) {
+        return;
+      }
+      this.exportSeq = exportSeq;
+      for (Iterator<Long> it = deletedItemSeqs.values().iterator(); it.hasNext(); ) {
+        if (it.next() <= exportSeq) {
+          it.remove();
+        }
+      }
+      edit(mainStore).putLong(TAG_EXPORT_SEQ, exportSeq);
+      putItemIds(edit(mainStore));
+    }
     commit();
   }
 
   private int getInt(String tag) {
-    return sharedPreferences.getInt(tag, 0);
+    return mainStore.getInt(tag, 0);
   }
 
   private String getString(String tag) {
-    return sharedPreferences.getString(tag, null);
+    return mainStore.getString(tag, null);
   }
 
-  private void putInt(String tag, int value) {
-    sharedPrefsEditor.putInt(tag, value);
+  // The following methods must be called while holding lock.
+
+  /**
+   * Returns true, and logs the given method, if this storage has been closed.
+   */
+  private boolean isClosed(String method) {
+    if (closed) {
+      logger.error("Storage." + method + " called after close");
+    }
+    return closed;
+  }
+
+  private void putItemIds(StorageBackend.Editor editor) {
+    editor.putInt(TAG_MAX_ITEM_ID, itemIdAllocator.getMaxItemId());
+    editor.putString(TAG_FREE_ITEM_IDS, itemIdAllocator.encodeFreeIds());
+    editor.putString(TAG_DELETED_ITEM_SEQS, encodeDeletedItemSeqs(deletedItemSeqs));
+  }
+
+  /**
+   * Records that the item with the given id was saved, so it is no longer deleted.
+   */
+  private void undeleteItemId(int id) {
+    if (deletedItemSeqs.remove(id) != null) {
+      putItemIds(edit(mainStore));
+    }
   }
 
   private void putString(String tag, String value) {
-    sharedPrefsEditor.putString(tag, value);
+    edit(mainStore).putString(tag, value);
+  }
+
+  private void journalPut(Item item) {
+    if (isClosed("journalPut")) {
+      return;
+    }
+    long seq = ++changeSeq;
+    item.setChangeSeq(seq);
+    if (journal != null) {
+      try {
+        journal.appendSave(seq, item);
+      } catch (IOException e) {
+        logger.error("Storage.journalPut caught", e);
+      }
+    } else {
+      int id = item.getId();
+      String value = encodeItem(item);
+      // The shard is committed later, so the new strings must be committed now.
+      commitStringDictionary();
+      edit(getItemShard(id)).putString(TAG_ITEM_PREFIX + id, value);
+      // The snapshots would hide this change.
+      deleteSnapshots(Long.MAX_VALUE);
+    }
+    item.clearDirtyFields();
+    undeleteItemId(item.getId());
+  }
+
+  private void journalDelete(int id) {
+    if (isClosed("journalDelete")) {
+      return;
+    }
+    long seq = ++changeSeq;
+    deletedItemSeqs.put(id, seq);
+    if (journal != null) {
+      try {
+        journal.appendDelete(seq, id);
+      } catch (IOException e) {
+        logger.error("Storage.journalDelete caught", e);
+      }
+    } else {
+      edit(getItemShard(id)).remove(TAG_ITEM_PREFIX + id);
+      // The snapshots would hide this change.
+      deleteSnapshots(Long.MAX_VALUE);
+    }
   }
 
-  private void removeValue(String tag) {
-    sharedPrefsEditor.remove(tag);
+  private void journalBatch(Collection<Item> itemsToSave, Collection<Integer> idsToDelete) {
+    if (isClosed("journalBatch")) {
+      return;
+    }
+    if (journal != null) {
+      long seq = ++changeSeq;
+      try {
+        journal.appendBatch(seq, itemsToSave, idsToDelete);
+      } catch (IOException e) {
+        logger.error("Storage.journalBatch caught", e);
+      }
+      for (int id : idsToDelete) {
+        deletedItemSeqs.put(id, seq);
+      }
+      for (Item item : itemsToSave) {
+        item.setChangeSeq(seq);
+        item.clearDirtyFields();
+        deletedItemSeqs.remove(item.getId());
+      }
+      putItemIds(edit(mainStore));
+    } else {
+      for (int id : idsToDelete) {
+        journalDelete(id);
+      }
+      for (Item item : itemsToSave) {
+        journalPut(item);
+      }
+    }
   }
 
-  private void edit() {
-    sharedPrefsEditor = sharedPreferences.edit();
+  private ItemJournal openJournal() {
+    try {
+      return new ItemJournal(new File(filesDir, JOURNAL_FILE_NAME));
+    } catch (IOException e) {
+      logger.error("Storage.openJournal caught", e);
+      // Without a journal, items are saved directly to the shard files.
+      return null;
+    }
   }
 
+  private StorageBackend.Editor edit(StorageBackend.Store store) {
+    if (closed) {
+      // The change is dropped.
+      return store.edit();
+    }
+    StorageBackend.Editor editor = pendingEditors.get(store);
+    if (editor == null) {
+      editor = store.edit();
+      pendingEditors.put(store, editor);
+    }
+    return editor;
+  }
+
+  private void scheduleCommit(long delayMs) {
+    if (closed) {
+      return;
+    }
+    if (scheduledCommit != null) {
+      scheduledCommit.cancel(false);
+    }
+    scheduledCommit = committer.schedule(commitRunnable, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  // The following method must be called without holding lock.
+
+  /**
+   * Commits the pending changes now or later, depending on the durability level.
+   */
   private void commit() {
-    sharedPrefsEditor.commit();
-    sharedPrefsEditor = null;
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      pendingChangeCount++;
+      switch (durability) {
+        case SYNCHRONOUS:
+          break;
+        default:
+        case GROUP_COMMIT:
+          if (pendingChangeCount >= GROUP_COMMIT_MAX_CHANGES) {
+            scheduleCommit(0);
+          } else if (scheduledCommit == null) {
+            scheduleCommit(GROUP_COMMIT_INTERVAL_MS);
+          }
+          return;
+        case ASYNC:
+          scheduleCommit(0);
+          return;
+      }
+    }
+    flush();
   }
 }
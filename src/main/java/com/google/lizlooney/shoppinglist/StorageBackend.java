@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.io.File;
+
+/**
+ * Interface for the places that {@link Storage} keeps its data: named key-value stores for
+ * settings and items, and a directory for the journal and snapshot files.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+interface StorageBackend {
+  /**
+   * Returns the store with the given name, creating it if necessary. Calling this again with the
+   * same name returns the same store.
+   */
+  Store getStore(String name);
+
+  /**
+   * Returns the directory for the files that are not kept in a store.
+   */
+  File getFilesDir();
+
+  /**
+   * Interface for a key-value store. Reads see every change that has been committed.
+   */
+  interface Store {
+    int getInt(String key, int defaultValue);
+
+    long getLong(String key, long defaultValue);
+
+    String getString(String key, String defaultValue);
+
+    /**
+     * Returns a new editor for changing this store.
+     */
+    Editor edit();
+  }
+
+  /**
+   * Interface for changing a store. Changes are not visible until they are committed, and then
+   * they are all visible together.
+   */
+  interface Editor {
+    Editor putInt(String key, int value);
+
+    Editor putLong(String key, long value);
+
+    Editor putString(String key, String value);
+
+    Editor remove(String key);
+
+    /**
+     * Removes everything from the store. When committed, this is done before the other changes.
+     */
+    Editor clear();
+
+    /**
+     * Commits the changes and waits until they are on disk.
+     *
+     * @return true if the changes were written
+     */
+    boolean commit();
+  }
+}
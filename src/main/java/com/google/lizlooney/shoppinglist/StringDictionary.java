@@ -0,0 +1,93 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class giving each distinct string a small index, so that strings that repeat a lot, like stores,
+ * aisles and categories, can be stored once and referred to by index.
+ *
+ * <p>Strings are only ever added, so an index, once given out, always means the same string. The
+ * dictionary keeps track of whether strings were added since it was last saved, and it must be
+ * saved before anything that refers to those strings.
+ *
+ * <p>This class is thread safe.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class StringDictionary {
+  private final List<String> strings = new ArrayList<>();
+  private final Map<String, Integer> indexes = new HashMap<>();
+  private int savedCount;
+
+  /**
+   * Creates a dictionary holding the given strings, as they were saved.
+   */
+  StringDictionary(List<String> savedStrings) {
+    for (String s : savedStrings) {
+      indexOf(s);
+    }
+    savedCount = strings.size();
+  }
+
+  /**
+   * Returns the index of the given string, adding it if necessary.
+   */
+  synchronized int indexOf(String s) {
+    Integer index = indexes.get(s);
+    if (index == null) {
+      index = strings.size();
+      strings.add(s);
+      indexes.put(s, index);
+    }
+    return index;
+  }
+
+  /**
+   * Returns the string with the given index.
+   *
+   * @throws IllegalArgumentException if there is no such string
+   */
+  synchronized String get(int index) {
+    if (index < 0 || index >= strings.size()) {
+      throw new IllegalArgumentException("Bad string index " + index);
+    }
+    return strings.get(index);
+  }
+
+  synchronized boolean hasUnsavedStrings() {
+    return savedCount < strings.size();
+  }
+
+  /**
+   * Returns all the strings, in index order.
+   */
+  synchronized List<String> getStrings() {
+    return new ArrayList<>(strings);
+  }
+
+  /**
+   * Records that the first count strings have been saved.
+   */
+  synchronized void markSaved(int count) {
+    savedCount = Math.max(savedCount, count);
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that what is committed to a {@link FileStorageBackend} is still there when the directory
+ * is opened again, as it would be after the process was killed.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+public final class FileStorageBackendTest {
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void committedValuesAreReadBack() throws IOException {
+    File dir = temporaryFolder.newFolder();
+    StorageBackend.Store store = new FileStorageBackend(dir).getStore("test");
+    assertTrue(store.edit()
+        .putInt("int", 1)
+        .putLong("long", 2L)
+        .putString("string", "three")
+        .commit());
+
+    store = new FileStorageBackend(dir).getStore("test");
+    assertEquals(1, store.getInt("int", 0));
+    assertEquals(2L, store.getLong("long", 0L));
+    assertEquals("three", store.getString("string", null));
+  }
+
+  @Test
+  public void uncommittedChangesAreNotWritten() throws IOException {
+    File dir = temporaryFolder.newFolder();
+    StorageBackend.Store store = new FileStorageBackend(dir).getStore("test");
+    assertTrue(store.edit().putInt("a", 1).commit());
+    StorageBackend.Editor editor = store.edit().putInt("a", 2).putInt("b", 3);
+    assertEquals(1, store.getInt("a", 0));
+
+    store = new FileStorageBackend(dir).getStore("test");
+    assertEquals(1, store.getInt("a", 0));
+    assertEquals(0, store.getInt("b", 0));
+  }
+
+  @Test
+  public void removeAndClearAreWritten() throws IOException {
+    File dir = temporaryFolder.newFolder();
+    StorageBackend.Store store = new FileStorageBackend(dir).getStore("test");
+    assertTrue(store.edit().putInt("a", 1).putInt("b", 2).putString("c", "c").commit());
+    assertTrue(store.edit().remove("a").putString("c", null).commit());
+
+    store = new FileStorageBackend(dir).getStore("test");
+    assertEquals(0, store.getInt("a", 0));
+    assertEquals(2, store.getInt("b", 0));
+    assertEquals(null, store.getString("c", null));
+
+    assertTrue(store.edit().clear().putInt("d", 4).commit());
+    store = new FileStorageBackend(dir).getStore("test");
+    assertEquals(0, store.getInt("b", 0));
+    assertEquals(4, store.getInt("d", 0));
+  }
+
+  @Test
+  public void leftoverTemporaryFileIsIgnored() throws IOException {
+    File dir = temporaryFolder.newFolder();
+    StorageBackend.Store store = new FileStorageBackend(dir).getStore("test");
+    assertTrue(store.edit().putInt("a", 1).commit());
+    // A commit that was killed before its rename leaves a partly written temporary file.
+    for (String name : dir.list()) {
+      FileOutputStream out = new FileOutputStream(new File(dir, name + ".tmp"));
+      try {
+        out.write(new byte[] {0, 0, 0, 9, 1});
+      } finally {
+        out.close();
+      }
+    }
+
+    store = new FileStorageBackend(dir).getStore("test");
+    assertEquals(1, store.getInt("a", 0));
+    assertTrue(store.edit().putInt("a", 2).commit());
+    store = new FileStorageBackend(dir).getStore("test");
+    assertEquals(2, store.getInt("a", 0));
+  }
+
+  @Test
+  public void largeStringIsReadBack() throws IOException {
+    File dir = temporaryFolder.newFolder();
+    char[] chars = new char[100000];
+    Arrays.fill(chars, '\u00e9');
+    String large = new String(chars);
+    assertTrue(new FileStorageBackend(dir).getStore("test").edit()
+        .putString("large", large)
+        .commit());
+
+    assertEquals(large, new FileStorageBackend(dir).getStore("test").getString("large", null));
+  }
+
+  @Test
+  public void synchronousItemsSurviveWithoutClose() throws IOException {
+    File dir = temporaryFolder.newFolder();
+    Storage storage = newStorage(dir);
+    storage.setDurability(Durability.SYNCHRONOUS);
+    List<Item> items = new ArrayList<>();
+    storage.loadItems(items);
+    for (int i = 0; i < 10; i++) {
+      Item item = newItem(storage.getUnusedItemId(), "item " + i);
+      items.add(item);
+      storage.saveItem(item);
+    }
+    items.get(3).setDescription("changed");
+    storage.saveItem(items.get(3));
+    storage.deleteItem(items.get(7));
+    // The storage is not closed, as if the process was killed.
+
+    Map<Integer, String> descriptions = loadDescriptions(newStorage(dir));
+    assertEquals(9, descriptions.size());
+    assertEquals("item 0", descriptions.get(items.get(0).getId()));
+    assertEquals("changed", descriptions.get(items.get(3).getId()));
+    assertFalse(descriptions.containsKey(items.get(7).getId()));
+    storage.close();
+  }
+
+  @Test
+  public void groupCommitItemsSurviveFlush() throws IOException {
+    File dir = temporaryFolder.newFolder();
+    Storage storage = newStorage(dir);
+    storage.setDurability(Durability.GROUP_COMMIT);
+    List<Item> items = new ArrayList<>();
+    storage.loadItems(items);
+    for (int i = 0; i < 100; i++) {
+      Item item = newItem(storage.getUnusedItemId(), "item " + i);
+      items.add(item);
+    }
+    storage.saveItems(items);
+    storage.flush();
+
+    Map<Integer, String> descriptions = loadDescriptions(newStorage(dir));
+    assertEquals(100, descriptions.size());
+    assertEquals("item 99", descriptions.get(items.get(99).getId()));
+    storage.close();
+  }
+
+  @Test
+  public void snapshotAndReplacedItemsSurviveReopen() throws IOException {
+    File dir = temporaryFolder.newFolder();
+    Storage storage = newStorage(dir);
+    List<Item> items = new ArrayList<>();
+    storage.loadItems(items);
+    for (int i = 0; i < 50; i++) {
+      Item item = newItem(storage.getUnusedItemId(), "item " + i);
+      items.add(item);
+      storage.saveItem(item);
+    }
+    storage.saveSnapshot(items);
+    List<Item> replacements = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      replacements.add(newItem(0, "replacement " + i));
+    }
+    assertTrue(storage.replaceItems(replacements));
+    storage.close();
+
+    Map<Integer, String> descriptions = loadDescriptions(newStorage(dir));
+    assertEquals(5, descriptions.size());
+    // The replacements were given new ids.
+    assertEquals("replacement 0", descriptions.get(replacements.get(0).getId()));
+  }
+
+  private static Storage newStorage(File dir) {
+    Storage storage = new Storage(new Gson(), new TestLogger());
+    storage.init(new FileStorageBackend(dir));
+    return storage;
+  }
+
+  private static Item newItem(int id, String description) {
+    Item item = new Item();
+    item.setId(id);
+    item.setDescription(description);
+    item.setCategory("category");
+    item.setState(ItemState.NEED);
+    item.addStoreAisle("store", "1");
+    return item;
+  }
+
+  private static Map<Integer, String> loadDescriptions(Storage storage) {
+    List<Item> items = new ArrayList<>();
+    storage.loadItems(items);
+    storage.close();
+    Map<Integer, String> descriptions = new HashMap<>();
+    for (Item item : items) {
+      descriptions.put(item.getId(), item.getDescription());
+    }
+    return descriptions;
+  }
+}
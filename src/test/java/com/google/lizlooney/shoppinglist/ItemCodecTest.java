@@ -0,0 +1,186 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests that items decoded by {@link ItemCodec} are the same as items that went through Gson, which
+ * is how items were stored before the codec.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+public final class ItemCodecTest {
+  private final Gson gson = new Gson();
+
+  @Test
+  public void simpleItem() {
+    Item item = newItem("milk", "dairy", ItemState.NEED, 1700000000000L, false);
+    item.addStoreAisle("Safeway", "5");
+    assertSameAsGson(item);
+  }
+
+  @Test
+  public void everyState() {
+    for (ItemState state : ItemState.values()) {
+      assertSameAsGson(newItem("item", "category", state, 0L, true));
+      assertSameAsGson(newItem("item", "category", state, 0L, false));
+    }
+  }
+
+  @Test
+  public void extremeLastPurchased() {
+    assertSameAsGson(newItem("a", "b", ItemState.NEED, Long.MAX_VALUE, false));
+    assertSameAsGson(newItem("a", "b", ItemState.NEED, Long.MIN_VALUE, false));
+    assertSameAsGson(newItem("a", "b", ItemState.NEED, -1L, false));
+  }
+
+  @Test
+  public void nullFields() {
+    // Gson sets fields to null when the JSON has explicit nulls.
+    Item item = gson.fromJson("{\"description\":null,\"category\":null,\"state\":null}",
+        Item.class);
+    assertSameAsGson(item);
+
+    item = new Item();
+    item.setDescription(null);
+    item.setCategory(null);
+    item.setState(null);
+    assertSameAsGson(item);
+  }
+
+  @Test
+  public void emptyStrings() {
+    Item item = newItem("", "", ItemState.DONT_NEED, 0L, false);
+    item.addStoreAisle("", "");
+    assertSameAsGson(item);
+  }
+
+  @Test
+  public void unicodeStrings() {
+    Item item = newItem("cr\u00e8me fra\u00eeche \u725b\u5976 \ud83e\udd5b", "\u4e73\u88fd\u54c1",
+        ItemState.NEED, 5L, true);
+    item.addStoreAisle("Caf\u00e9 \ud83d\uded2", "\u901a\u8def 3");
+    item.addStoreAisle("line\nbreak \"quoted\" \\ tab\t", "\u0000");
+    assertSameAsGson(item);
+  }
+
+  @Test
+  public void storeAisles() {
+    Item item = newItem("bread", "bakery", ItemState.NEED, 0L, false);
+    item.addStoreAisle("Trader Joe's", "3");
+    item.addStoreAisle("Costco", "12");
+    item.addStoreAisle("Safeway", "Safeway");
+    // A later aisle for the same store replaces the earlier one.
+    item.addStoreAisle("Costco", "14");
+    assertSameAsGson(item);
+
+    Item noStores = newItem("bread", "bakery", ItemState.NEED, 0L, false);
+    assertSameAsGson(noStores);
+  }
+
+  @Test
+  public void manyItemsShareStrings() {
+    List<Item> items = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      Item item = newItem("item " + i, "category " + (i % 7), ItemState.values()[
+          i % ItemState.values().length], i * 1000L, i % 2 == 0);
+      for (int j = 0; j < i % 4; j++) {
+        item.addStoreAisle("store " + j, "aisle " + (i % 11));
+      }
+      items.add(item);
+    }
+
+    ItemCodec.Encoder encoder = new ItemCodec.Encoder();
+    for (Item item : items) {
+      encoder.writeItem(item);
+    }
+    ItemCodec.Decoder decoder = new ItemCodec.Decoder(ByteBuffer.wrap(encoder.toByteArray()));
+    for (Item item : items) {
+      assertEquals(gsonRoundTrip(item), gson.toJson(decoder.readItem()));
+    }
+    assertFalse(decoder.hasRemaining());
+  }
+
+  @Test
+  public void changedFields() {
+    Item base = newItem("eggs", "dairy", ItemState.NEED, 10L, false);
+    base.addStoreAisle("Safeway", "5");
+    Item changed = gson.fromJson(gson.toJson(base), Item.class);
+    changed.clearDirtyFields();
+    changed.setDescription("brown eggs");
+    changed.setState(ItemState.IN_SHOPPING_CART);
+    changed.clearStoreAisles();
+    changed.addStoreAisle("Costco", "\u00e9");
+
+    ItemCodec.Encoder encoder = new ItemCodec.Encoder();
+    encoder.writeItemFields(changed, changed.getDirtyFields());
+    ItemCodec.Decoder decoder = new ItemCodec.Decoder(ByteBuffer.wrap(encoder.toByteArray()));
+    Item decoded = gson.fromJson(gson.toJson(base), Item.class);
+    decoder.readItemFields(decoded);
+    assertEquals(gsonRoundTrip(changed), gson.toJson(decoded));
+    assertFalse(decoder.hasRemaining());
+  }
+
+  @Test
+  public void allFieldsWithNulls() {
+    Item item = new Item();
+    item.setDescription(null);
+    item.setState(null);
+    ItemCodec.Encoder encoder = new ItemCodec.Encoder();
+    encoder.writeItemFields(item, Item.ALL_FIELDS);
+    ItemCodec.Decoder decoder = new ItemCodec.Decoder(ByteBuffer.wrap(encoder.toByteArray()));
+    Item decoded = new Item();
+    decoder.readItemFields(decoded);
+    assertEquals(gsonRoundTrip(item), gson.toJson(decoded));
+  }
+
+  private static Item newItem(String description, String category, ItemState state,
+      long lastPurchased, boolean autoDelete) {
+    Item item = new Item();
+    item.setDescription(description);
+    item.setCategory(category);
+    item.setState(state);
+    item.setLastPurchased(lastPurchased);
+    item.setAutoDelete(autoDelete);
+    return item;
+  }
+
+  /**
+   * Checks that encoding and decoding the given item gives the same item as writing it to JSON and
+   * reading it back. Items are compared by their JSON, since Item has no equals.
+   */
+  private void assertSameAsGson(Item item) {
+    ItemCodec.Encoder encoder = new ItemCodec.Encoder();
+    encoder.writeItem(item);
+    ItemCodec.Decoder decoder = new ItemCodec.Decoder(ByteBuffer.wrap(encoder.toByteArray()));
+    Item decoded = decoder.readItem();
+    assertFalse(decoder.hasRemaining());
+    assertEquals(gsonRoundTrip(item), gson.toJson(decoded));
+  }
+
+  private String gsonRoundTrip(Item item) {
+    return gson.toJson(gson.fromJson(gson.toJson(item), Item.class));
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import java.util.Collections;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ItemShardCodec}.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+public final class ItemShardCodecTest {
+  private final Gson gson = new Gson();
+  private final StringDictionary dictionary =
+      new StringDictionary(Collections.<String>emptyList());
+
+  @Test
+  public void roundTrip() {
+    Item item = new Item();
+    item.setDescription("milk");
+    item.setCategory("dairy");
+    item.setState(ItemState.IN_SHOPPING_CART);
+    item.setLastPurchased(1700000000000L);
+    item.setAutoDelete(true);
+    item.addStoreAisle("Safeway", "5");
+    item.addStoreAisle("Costco", "12");
+    item.setChangeSeq(42);
+
+    Item decoded = ItemShardCodec.decode(ItemShardCodec.encode(item, dictionary), dictionary);
+    assertEquals(gson.toJson(item), gson.toJson(decoded));
+    assertEquals(42, decoded.getChangeSeq());
+  }
+
+  @Test
+  public void nullFields() {
+    // Gson sets fields to null when the JSON has explicit nulls.
+    Item item = gson.fromJson("{\"description\":null,\"category\":null,\"state\":null}",
+        Item.class);
+    Item decoded = ItemShardCodec.decode(ItemShardCodec.encode(item, dictionary), dictionary);
+    assertEquals(gsonRoundTrip(item), gson.toJson(decoded));
+  }
+
+  @Test
+  public void nullDescription() {
+    StringDictionary dictionary = new StringDictionary(Collections.singletonList(""));
+    Item decoded = ItemShardCodec.decode(
+        "[5,null,0," + (ItemState.NEED.ordinal() << 1) + ",0]", dictionary);
+    assertEquals("", decoded.getDescription());
+    assertEquals(ItemState.NEED, decoded.getState());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badState() {
+    StringDictionary dictionary = new StringDictionary(Collections.singletonList(""));
+    ItemShardCodec.decode("[5,\"milk\",0,99,0]", dictionary);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void truncated() {
+    ItemShardCodec.decode("[5,\"milk\"", dictionary);
+  }
+
+  private String gsonRoundTrip(Item item) {
+    return gson.toJson(gson.fromJson(gson.toJson(item), Item.class));
+  }
+}
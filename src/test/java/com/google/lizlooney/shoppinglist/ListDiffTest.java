@@ -0,0 +1,284 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ListDiff}. Each diff is checked by applying its operations to the old ids, the
+ * way a list view would, and comparing the result with the new ids.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+public final class ListDiffTest {
+  @Test
+  public void sameLists() {
+    List<ListDiff.Op> ops = checkDiff(ids(1, 2, 3), ids(1, 2, 3));
+    assertTrue(ops.isEmpty());
+  }
+
+  @Test
+  public void emptyLists() {
+    assertTrue(checkDiff(ids(), ids()).isEmpty());
+    assertEquals(3, checkDiff(ids(), ids(1, 2, 3)).size());
+    assertEquals(3, checkDiff(ids(1, 2, 3), ids()).size());
+  }
+
+  @Test
+  public void allNew() {
+    List<ListDiff.Op> ops = checkDiff(ids(1, 2, 3), ids(4, 5));
+    assertEquals(5, ops.size());
+    assertEquals(0, count(ops, ListDiff.OpType.MOVE));
+  }
+
+  @Test
+  public void oneInsertAndOneRemove() {
+    List<ListDiff.Op> ops = checkDiff(ids(1, 2, 3, 4), ids(1, 3, 4, 5));
+    assertEquals(2, ops.size());
+    assertEquals(1, count(ops, ListDiff.OpType.REMOVE));
+    assertEquals(1, count(ops, ListDiff.OpType.INSERT));
+  }
+
+  @Test
+  public void reversed() {
+    long[] oldIds = new long[10];
+    long[] newIds = new long[10];
+    for (int i = 0; i < 10; i++) {
+      oldIds[i] = i;
+      newIds[i] = 9 - i;
+    }
+    List<ListDiff.Op> ops = checkDiff(oldIds, newIds);
+    // Every row is still there, so the rows are moved rather than removed and inserted.
+    assertEquals(0, count(ops, ListDiff.OpType.REMOVE));
+    assertEquals(0, count(ops, ListDiff.OpType.INSERT));
+    assertTrue(count(ops, ListDiff.OpType.MOVE) > 0);
+  }
+
+  @Test
+  public void changedContent() {
+    long[] oldIds = ids(1, 2, 3, 4);
+    long[] newIds = ids(4, 2, 3, 1);
+    String[] oldContents = {"a", "b", "c", "d"};
+    String[] newContents = {"d", "B", "c", "A"};
+    List<ListDiff.Op> ops = checkDiff(oldIds, newIds, oldContents, newContents);
+    // Row 2 changed in place and row 1 changed as it moved.
+    assertEquals(2, count(ops, ListDiff.OpType.CHANGE));
+  }
+
+  @Test
+  public void tooManyDifferences() {
+    int count = ListDiff.MAX_EDIT_COUNT;
+    long[] oldIds = new long[count];
+    long[] newIds = new long[count];
+    for (int i = 0; i < count; i++) {
+      oldIds[i] = i;
+      newIds[i] = count + i;
+    }
+    assertNull(ListDiff.diff(oldIds, newIds, sameContent()));
+
+    // Differing by exactly the limit still gives the operations.
+    long[] fewerNewIds = Arrays.copyOf(newIds, count / 2);
+    long[] fewerOldIds = Arrays.copyOf(oldIds, count / 2);
+    assertNotNull(ListDiff.diff(fewerOldIds, fewerNewIds, sameContent()));
+  }
+
+  @Test
+  public void randomLists() {
+    Random random = new Random(1234);
+    for (int trial = 0; trial < 500; trial++) {
+      List<Long> oldList = new ArrayList<>();
+      int size = random.nextInt(40);
+      for (long id = 0; id < size; id++) {
+        oldList.add(id);
+      }
+      List<Long> newList = new ArrayList<>(oldList);
+      long nextId = 1000;
+      int editCount = random.nextInt(10);
+      for (int i = 0; i < editCount; i++) {
+        switch (random.nextInt(3)) {
+          case 0:
+            newList.add(random.nextInt(newList.size() + 1), nextId++);
+            break;
+          case 1:
+            if (!newList.isEmpty()) {
+              newList.remove(random.nextInt(newList.size()));
+            }
+            break;
+          default:
+            if (!newList.isEmpty()) {
+              Long id = newList.remove(random.nextInt(newList.size()));
+              newList.add(random.nextInt(newList.size() + 1), id);
+            }
+            break;
+        }
+      }
+      long[] oldIds = toArray(oldList);
+      long[] newIds = toArray(newList);
+      String[] oldContents = new String[oldIds.length];
+      for (int i = 0; i < oldIds.length; i++) {
+        oldContents[i] = "row " + oldIds[i];
+      }
+      String[] newContents = new String[newIds.length];
+      for (int i = 0; i < newIds.length; i++) {
+        newContents[i] = "row " + newIds[i] + (random.nextInt(5) == 0 ? " changed" : "");
+      }
+      checkDiff(oldIds, newIds, oldContents, newContents);
+    }
+  }
+
+  private static List<ListDiff.Op> checkDiff(long[] oldIds, long[] newIds) {
+    String[] oldContents = new String[oldIds.length];
+    Arrays.fill(oldContents, "");
+    String[] newContents = new String[newIds.length];
+    Arrays.fill(newContents, "");
+    return checkDiff(oldIds, newIds, oldContents, newContents);
+  }
+
+  /**
+   * Diffs the given lists and checks that applying the operations to the old ids gives the new
+   * ids, and that exactly the rows whose content differs are changed.
+   */
+  private static List<ListDiff.Op> checkDiff(long[] oldIds, long[] newIds,
+      final String[] oldContents, final String[] newContents) {
+    List<ListDiff.Op> ops = ListDiff.diff(oldIds, newIds, new ListDiff.ContentComparator() {
+      @Override
+      public boolean isSameContent(int oldPosition, int newPosition) {
+        return oldContents[oldPosition].equals(newContents[newPosition]);
+      }
+    });
+    assertNotNull(ops);
+    assertArrayEquals(Arrays.toString(oldIds) + " -> " + Arrays.toString(newIds) + " " + ops,
+        newIds, apply(oldIds, newIds, ops));
+
+    Set<Integer> expectedChanges = new HashSet<>();
+    Map<Long, Integer> oldPositions = new HashMap<>();
+    for (int i = 0; i < oldIds.length; i++) {
+      oldPositions.put(oldIds[i], i);
+    }
+    for (int i = 0; i < newIds.length; i++) {
+      Integer oldPosition = oldPositions.get(newIds[i]);
+      if (oldPosition != null && !oldContents[oldPosition].equals(newContents[i])) {
+        expectedChanges.add(i);
+      }
+    }
+    Set<Integer> changes = new HashSet<>();
+    for (ListDiff.Op op : ops) {
+      if (op.type == ListDiff.OpType.CHANGE) {
+        assertTrue("changed twice: " + ops, changes.add(op.newPosition));
+      }
+    }
+    assertEquals(expectedChanges, changes);
+    return ops;
+  }
+
+  /**
+   * Applies the operations to the old ids: the removes and the old positions of the moves, from
+   * the last position to the first, and then the inserts and the new positions of the moves, from
+   * the first position to the last. An insert shows the new row, and a move shows the old row.
+   */
+  private static long[] apply(long[] oldIds, long[] newIds, List<ListDiff.Op> ops) {
+    List<Long> list = new ArrayList<>();
+    for (long id : oldIds) {
+      list.add(id);
+    }
+    List<ListDiff.Op> removals = new ArrayList<>();
+    List<ListDiff.Op> additions = new ArrayList<>();
+    for (ListDiff.Op op : ops) {
+      switch (op.type) {
+        case REMOVE:
+          removals.add(op);
+          break;
+        case INSERT:
+          additions.add(op);
+          break;
+        case MOVE:
+          removals.add(op);
+          additions.add(op);
+          break;
+        case CHANGE:
+          break;
+      }
+    }
+    Collections.sort(removals, new Comparator<ListDiff.Op>() {
+      @Override
+      public int compare(ListDiff.Op o1, ListDiff.Op o2) {
+        return Integer.compare(o2.oldPosition, o1.oldPosition);
+      }
+    });
+    Collections.sort(additions, new Comparator<ListDiff.Op>() {
+      @Override
+      public int compare(ListDiff.Op o1, ListDiff.Op o2) {
+        return Integer.compare(o1.newPosition, o2.newPosition);
+      }
+    });
+    for (ListDiff.Op op : removals) {
+      list.remove(op.oldPosition);
+    }
+    for (ListDiff.Op op : additions) {
+      long id = (op.type == ListDiff.OpType.MOVE) ? oldIds[op.oldPosition] : newIds[op.newPosition];
+      list.add(op.newPosition, id);
+    }
+    return toArray(list);
+  }
+
+  private static int count(List<ListDiff.Op> ops, ListDiff.OpType type) {
+    int count = 0;
+    for (ListDiff.Op op : ops) {
+      if (op.type == type) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static ListDiff.ContentComparator sameContent() {
+    return new ListDiff.ContentComparator() {
+      @Override
+      public boolean isSameContent(int oldPosition, int newPosition) {
+        return true;
+      }
+    };
+  }
+
+  private static long[] ids(long... ids) {
+    return ids;
+  }
+
+  private static long[] toArray(List<Long> list) {
+    long[] array = new long[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+}
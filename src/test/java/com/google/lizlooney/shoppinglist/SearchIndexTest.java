@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SearchIndex}.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+public final class SearchIndexTest {
+  private final SearchIndex searchIndex = new SearchIndex();
+  private int nextId = 1;
+
+  @Before
+  public void setUp() {
+    add("Bread");
+    add("Whole wheat bread");
+    add("Milk");
+    add("Almond milk");
+    add("Eggs");
+    add("Breadcrumbs");
+    add("Chocolate chip cookies");
+  }
+
+  @Test
+  public void search() {
+    assertEquals(Arrays.asList("Almond milk", "Milk"),
+        getSortedDescriptions(searchIndex.search("MILK")));
+    assertEquals(Arrays.asList("Bread", "Breadcrumbs", "Whole wheat bread"),
+        getSortedDescriptions(searchIndex.search("bread")));
+    assertEquals(Arrays.asList("Eggs"), getSortedDescriptions(searchIndex.search("gg")));
+    assertTrue(searchIndex.search("brwad").isEmpty());
+  }
+
+  @Test
+  public void fuzzySearchWithTyposInEveryTrigram() {
+    // Each of these has a typo in every trigram, so none of their trigrams are in the index.
+    assertEquals(Arrays.asList("Bread", "Breadcrumbs", "Whole wheat bread"),
+        getDescriptions(searchIndex.fuzzySearch("brwad")));
+    assertEquals(Arrays.asList("Milk", "Almond milk"),
+        getDescriptions(searchIndex.fuzzySearch("mxlk")));
+    assertEquals(Arrays.asList("Eggs"), getDescriptions(searchIndex.fuzzySearch("egxs")));
+  }
+
+  @Test
+  public void fuzzySearchRanksBestMatchFirst() {
+    assertEquals(Arrays.asList("Bread", "Breadcrumbs", "Whole wheat bread"),
+        getDescriptions(searchIndex.fuzzySearch("bread")));
+    assertEquals(Arrays.asList("Chocolate chip cookies"),
+        getDescriptions(searchIndex.fuzzySearch("chocolat chip")));
+    assertEquals(Arrays.asList("Chocolate chip cookies"),
+        getDescriptions(searchIndex.fuzzySearch("cookis")));
+  }
+
+  @Test
+  public void fuzzySearchOfShortTextMustMatchExactly() {
+    assertEquals(Arrays.asList("Eggs"), getDescriptions(searchIndex.fuzzySearch("egg")));
+    assertTrue(searchIndex.fuzzySearch("egx").isEmpty());
+  }
+
+  @Test
+  public void fuzzySearchFindsNothingWithTooManyTypos() {
+    assertTrue(searchIndex.fuzzySearch("bxxad").isEmpty());
+    assertTrue(searchIndex.fuzzySearch("zzzz").isEmpty());
+  }
+
+  @Test
+  public void changedAndRemovedItems() {
+    Item item = add("Butter");
+    assertEquals(Arrays.asList("Butter"), getDescriptions(searchIndex.fuzzySearch("buttr")));
+
+    item.setDescription("Peanut butter");
+    searchIndex.put(item);
+    assertEquals(Arrays.asList("Peanut butter"), getDescriptions(searchIndex.search("peanut")));
+
+    searchIndex.remove(item);
+    assertTrue(searchIndex.search("butter").isEmpty());
+    assertTrue(searchIndex.fuzzySearch("buttr").isEmpty());
+  }
+
+  private Item add(String description) {
+    Item item = new Item();
+    item.setId(nextId++);
+    item.setDescription(description);
+    searchIndex.put(item);
+    return item;
+  }
+
+  private static List<String> getDescriptions(List<Item> items) {
+    List<String> descriptions = new ArrayList<>();
+    for (Item item : items) {
+      descriptions.add(item.getDescription());
+    }
+    return descriptions;
+  }
+
+  /**
+   * Returns the descriptions of the given items, sorted, since search finds them in no particular
+   * order.
+   */
+  private static List<String> getSortedDescriptions(List<Item> items) {
+    List<String> descriptions = getDescriptions(items);
+    Collections.sort(descriptions);
+    return descriptions;
+  }
+}
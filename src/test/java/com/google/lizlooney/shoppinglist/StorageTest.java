@@ -0,0 +1,439 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link Storage}, run against a {@link FileStorageBackend}.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+public final class StorageTest {
+  private static final String JOURNAL_FILE_NAME = "ShoppingList.journal";
+  private static final String COMPACTING_JOURNAL_FILE_NAME = "ShoppingList.journal.compacting";
+  private static final String SNAPSHOT_FILE_NAME_PREFIX = "ShoppingList.snapshot.";
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File dir;
+  private Storage storage;
+  private final List<Item> items = new ArrayList<>();
+
+  @Before
+  public void setUp() throws IOException {
+    dir = temporaryFolder.newFolder();
+    storage = newStorage(dir);
+    // Changes are written behind, as they are on the device.
+    storage.setDurability(Durability.GROUP_COMMIT);
+    storage.loadItems(items);
+    for (int i = 0; i < 5; i++) {
+      Item item = new Item();
+      item.setId(storage.getUnusedItemId());
+      item.setDescription("item " + i);
+      items.add(item);
+      storage.saveItem(item);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    storage.close();
+  }
+
+  @Test
+  public void exportTwiceInARow() {
+    // The first export of changes has everything.
+    assertEquals(0L, storage.loadExportSeq());
+    long firstSeq = storage.getChangeSeq();
+    assertEquals(5, getChangedItems(0L).size());
+    storage.saveExportSeq(firstSeq);
+
+    Item changedItem = items.get(1);
+    changedItem.setDescription("changed");
+    storage.saveItem(changedItem);
+    Item deletedItem = items.remove(3);
+    storage.deleteItem(deletedItem);
+
+    // The second export starts where the first one ended, before anything is flushed.
+    long fromSeq = storage.loadExportSeq();
+    assertEquals(firstSeq, fromSeq);
+    assertEquals(Collections.singletonList(changedItem), getChangedItems(fromSeq));
+    assertEquals(Arrays.asList(deletedItem.getId()), storage.getDeletedItemIdsSince(fromSeq));
+    long secondSeq = storage.getChangeSeq();
+    storage.saveExportSeq(secondSeq);
+
+    assertEquals(secondSeq, storage.loadExportSeq());
+    assertTrue(getChangedItems(secondSeq).isEmpty());
+    assertTrue(storage.getDeletedItemIdsSince(secondSeq).isEmpty());
+  }
+
+  @Test
+  public void exportSeqIsSaved() {
+    long seq = storage.getChangeSeq();
+    storage.saveExportSeq(seq);
+    storage.close();
+
+    storage = newStorage(dir);
+    assertEquals(seq, storage.loadExportSeq());
+  }
+
+  @Test
+  public void earlierExportFinishingLaterIsIgnored() {
+    long firstSeq = storage.getChangeSeq();
+    Item item = items.get(0);
+    item.setDescription("changed");
+    storage.saveItem(item);
+    long secondSeq = storage.getChangeSeq();
+
+    storage.saveExportSeq(secondSeq);
+    storage.saveExportSeq(firstSeq);
+    assertEquals(secondSeq, storage.loadExportSeq());
+  }
+
+  @Test
+  public void replacedItemsCantBeExportedAsChanges() {
+    long seq = storage.getChangeSeq();
+    storage.saveExportSeq(seq);
+    List<Item> replacements = new ArrayList<>();
+    Item replacement = new Item();
+    replacement.setDescription("replacement");
+    replacements.add(replacement);
+    assertTrue(storage.replaceItems(replacements));
+
+    assertEquals(null, storage.getDeletedItemIdsSince(seq));
+  }
+
+  @Test
+  public void badShardItemIsSkipped() throws IOException {
+    // Items saved before there was a journal or a list of free ids are only in the shards.
+    File oldDir = temporaryFolder.newFolder();
+    FileStorageBackend backend = new FileStorageBackend(oldDir);
+    backend.getStore("ShoppingList").edit().putInt("MaxItemId", 2).commit();
+    backend.getStore("ShoppingList_Items_0").edit()
+        .putString("Item_0", "{\"description\":\"milk\"}").commit();
+    backend.getStore("ShoppingList_Items_1").edit().putString("Item_1", "[1,\"bad\"").commit();
+    backend.getStore("ShoppingList_Items_2").edit()
+        .putString("Item_2", "{\"description\":[\"eggs\"]}").commit();
+
+    Storage oldStorage = newStorage(oldDir);
+    List<Item> loadedItems = new ArrayList<>();
+    oldStorage.loadItems(loadedItems);
+    oldStorage.close();
+    assertEquals(1, loadedItems.size());
+    assertEquals("milk", loadedItems.get(0).getDescription());
+  }
+
+  @Test
+  public void tornJournalRecordIsCutOff() throws IOException {
+    storage.close();
+    // The app died while the last item was being appended.
+    File journalFile = new File(dir, JOURNAL_FILE_NAME);
+    setLength(journalFile, journalFile.length() - 3);
+
+    List<Item> loadedItems = reopen();
+    assertEquals(Arrays.asList("item 0", "item 1", "item 2", "item 3"),
+        getDescriptions(loadedItems));
+
+    // Records appended after the cut are read.
+    Item item = new Item();
+    item.setId(storage.getUnusedItemId());
+    item.setDescription("new item");
+    storage.saveItem(item);
+    assertEquals(Arrays.asList("item 0", "item 1", "item 2", "item 3", "new item"),
+        getDescriptions(reopen()));
+  }
+
+  @Test
+  public void journalRecordWithBadCrcIsIgnored() throws IOException {
+    Item item = items.get(0);
+    item.setDescription("changed");
+    storage.saveItem(item);
+    storage.close();
+    // Damage the body of the last record, which changes item 0.
+    File journalFile = new File(dir, JOURNAL_FILE_NAME);
+    flipByte(journalFile, journalFile.length() - 1);
+
+    List<Item> loadedItems = reopen();
+    assertEquals(Arrays.asList("item 0", "item 1", "item 2", "item 3", "item 4"),
+        getDescriptions(loadedItems));
+  }
+
+  @Test
+  public void compactionLeftUnfinishedIsFinished() throws IOException {
+    storage.close();
+    // The app died after the journal was set aside for compaction, before it was folded into the
+    // shards.
+    File journalFile = new File(dir, JOURNAL_FILE_NAME);
+    File compactingFile = new File(dir, COMPACTING_JOURNAL_FILE_NAME);
+    assertTrue(journalFile.renameTo(compactingFile));
+
+    List<Item> loadedItems = reopen();
+    assertEquals(Arrays.asList("item 0", "item 1", "item 2", "item 3", "item 4"),
+        getDescriptions(loadedItems));
+    // Flushing finds the leftover journal and compacts it, and closing waits for that.
+    storage.flush();
+    storage.close();
+    assertFalse(compactingFile.exists());
+
+    // The shards hold the items that were in the leftover journal.
+    assertTrue(journalFile.delete());
+    assertEquals(Arrays.asList("item 0", "item 1", "item 2", "item 3", "item 4"),
+        getDescriptions(reopen()));
+  }
+
+  @Test
+  public void longJournalIsCompacted() {
+    for (int i = 0; i < 1200; i++) {
+      Item item = items.get(i % items.size());
+      item.setDescription("change " + i);
+      storage.saveItem(item);
+    }
+    storage.flush();
+    storage.close();
+    assertFalse(new File(dir, COMPACTING_JOURNAL_FILE_NAME).exists());
+    assertTrue(new File(dir, JOURNAL_FILE_NAME).length() < 1000);
+
+    assertEquals(Arrays.asList("change 1195", "change 1196", "change 1197", "change 1198",
+        "change 1199"), getDescriptions(reopen()));
+  }
+
+  @Test
+  public void damagedSnapshotRollsBackToTheGenerationBefore() throws IOException {
+    storage.saveSnapshot(items);
+    Item item = items.get(0);
+    item.setDescription("changed");
+    storage.saveItem(item);
+    storage.saveSnapshot(items);
+    // Closing waits for the snapshots to be written.
+    storage.close();
+    List<File> snapshotFiles = getSnapshotFiles();
+    assertEquals(2, snapshotFiles.size());
+
+    // Damage an item in the newest snapshot, which would load as "itex 3" if it were used.
+    File newestFile = snapshotFiles.get(snapshotFiles.size() - 1);
+    byte[] bytes = Files.readAllBytes(newestFile.toPath());
+    int position = indexOf(bytes, "item 3".getBytes(StandardCharsets.UTF_8));
+    assertTrue(position != -1);
+    bytes[position + 3] = 'x';
+    Files.write(newestFile.toPath(), bytes);
+
+    // The older snapshot and the journal after it give the items as they were.
+    assertEquals(Arrays.asList("changed", "item 1", "item 2", "item 3", "item 4"),
+        getDescriptions(reopen()));
+  }
+
+  @Test
+  public void replacedItemsAreLoaded() {
+    List<Item> replacements = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      Item replacement = new Item();
+      replacement.setDescription("replacement " + i);
+      replacements.add(replacement);
+    }
+    assertTrue(storage.replaceItems(replacements));
+    Item item = new Item();
+    item.setId(storage.getUnusedItemId());
+    item.setDescription("added after");
+    storage.saveItem(item);
+
+    List<String> expected =
+        Arrays.asList("replacement 0", "replacement 1", "replacement 2", "added after");
+    assertEquals(expected, getDescriptions(reopen()));
+
+    // The shards hold the replacements too, for when no snapshot can be used.
+    storage.close();
+    for (File snapshotFile : getSnapshotFiles()) {
+      assertTrue(snapshotFile.delete());
+    }
+    assertEquals(expected, getDescriptions(reopen()));
+  }
+
+  @Test
+  public void itemIdsArePersisted() {
+    storage.deleteItem(items.remove(2));
+    storage.close();
+
+    StorageBackend.Store mainStore = new FileStorageBackend(dir).getStore("ShoppingList");
+    assertEquals(4, mainStore.getInt("MaxItemId", -1));
+    assertEquals("2", mainStore.getString("FreeItemIds", null));
+
+    // The free id is used again.
+    reopen();
+    assertEquals(2, storage.getUnusedItemId());
+  }
+
+  @Test
+  public void sparseItemIdsAreCompacted() {
+    for (int i = 5; i < 10; i++) {
+      Item item = new Item();
+      item.setId(storage.getUnusedItemId());
+      item.setDescription("item " + i);
+      items.add(item);
+      storage.saveItem(item);
+    }
+    for (int i = 0; i < 8; i++) {
+      storage.deleteItem(items.remove(0));
+    }
+
+    // More ids are free than are used, so the items are renumbered when they are loaded.
+    List<String> expected = Arrays.asList("item 9", "item 8");
+    List<Item> loadedItems = reopen();
+    assertEquals(Arrays.asList(0, 1), getIds(loadedItems));
+    assertEquals(expected, getDescriptionsById(loadedItems));
+
+    loadedItems = reopen();
+    assertEquals(Arrays.asList(0, 1), getIds(loadedItems));
+    assertEquals(expected, getDescriptionsById(loadedItems));
+    assertEquals(2, storage.getUnusedItemId());
+  }
+
+  /**
+   * Returns the items saved after the given change sequence number, the way an export of changes
+   * finds them.
+   */
+  private List<Item> getChangedItems(long seq) {
+    List<Item> changedItems = new ArrayList<>();
+    for (Item item : items) {
+      if (item.getChangeSeq() > seq) {
+        changedItems.add(item);
+      }
+    }
+    return changedItems;
+  }
+
+  /**
+   * Closes the storage and loads the items with a new one, as when the app is started again.
+   */
+  private List<Item> reopen() {
+    storage.close();
+    storage = newStorage(dir);
+    List<Item> loadedItems = new ArrayList<>();
+    storage.loadItems(loadedItems);
+    return loadedItems;
+  }
+
+  private static List<String> getDescriptions(List<Item> items) {
+    List<String> descriptions = new ArrayList<>();
+    for (Item item : items) {
+      descriptions.add(item.getDescription());
+    }
+    return descriptions;
+  }
+
+  private static List<Integer> getIds(List<Item> items) {
+    List<Integer> ids = new ArrayList<>();
+    for (Item item : items) {
+      ids.add(item.getId());
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+  /**
+   * Returns the descriptions of the given items, in order of their ids.
+   */
+  private static List<String> getDescriptionsById(List<Item> items) {
+    List<Item> sortedItems = new ArrayList<>(items);
+    Collections.sort(sortedItems, new Comparator<Item>() {
+      @Override
+      public int compare(Item o1, Item o2) {
+        return Integer.compare(o1.getId(), o2.getId());
+      }
+    });
+    return getDescriptions(sortedItems);
+  }
+
+  /**
+   * Returns the snapshot files, oldest first.
+   */
+  private List<File> getSnapshotFiles() {
+    List<File> snapshotFiles = new ArrayList<>();
+    for (File file : dir.listFiles()) {
+      if (file.getName().startsWith(SNAPSHOT_FILE_NAME_PREFIX)) {
+        snapshotFiles.add(file);
+      }
+    }
+    Collections.sort(snapshotFiles, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        return Long.compare(getSnapshotSeq(o1), getSnapshotSeq(o2));
+      }
+    });
+    return snapshotFiles;
+  }
+
+  private static long getSnapshotSeq(File snapshotFile) {
+    return Long.parseLong(snapshotFile.getName().substring(SNAPSHOT_FILE_NAME_PREFIX.length()));
+  }
+
+  private static int indexOf(byte[] bytes, byte[] target) {
+    for (int i = 0; i + target.length <= bytes.length; i++) {
+      if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + target.length), target)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static void setLength(File file, long length) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(length);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static void flipByte(File file, long position) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.seek(position);
+      int b = randomAccessFile.read();
+      randomAccessFile.seek(position);
+      randomAccessFile.write(b ^ 0xFF);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static Storage newStorage(File dir) {
+    Storage storage = new Storage(new Gson(), new TestLogger());
+    storage.init(new FileStorageBackend(dir));
+    return storage;
+  }
+}
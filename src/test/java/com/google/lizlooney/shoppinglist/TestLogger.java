@@ -0,0 +1,39 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.lizlooney.shoppinglist;
+
+/**
+ * Logger for tests that writes errors to System.err and ignores debug messages.
+ *
+ * @author lizlooney@gmail.com (Liz Looney)
+ */
+final class TestLogger implements Logger {
+  @Override
+  public void debug(String message) {
+  }
+
+  @Override
+  public void error(String message) {
+    System.err.println(message);
+  }
+
+  @Override
+  public void error(String message, Throwable e) {
+    System.err.println(message);
+    e.printStackTrace();
+  }
+}